@@ -0,0 +1,46 @@
+//=============================================================================
+// Brief     : TFTP Benchmarks Launcher
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.benchmark;
+
+import java.util.Arrays;
+
+// Runs the JMH benchmarks with the same arguments as org.openjdk.jmh.Main,
+// adding the GC profiler unless a profiler is given, so every run reports
+// the allocation rate next to the throughput
+public class Main {
+
+    public static void main(String[] args) throws Exception {
+        if (!Arrays.asList(args).contains("-prof")) {
+            String[] tmp = new String[args.length + 2];
+            tmp[0] = "-prof";
+            tmp[1] = "gc";
+            System.arraycopy(args, 0, tmp, 2, args.length);
+            args = tmp;
+        }
+
+        org.openjdk.jmh.Main.main(args);
+    }
+}
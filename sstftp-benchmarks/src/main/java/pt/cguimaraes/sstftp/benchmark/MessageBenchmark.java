@@ -0,0 +1,205 @@
+//=============================================================================
+// Brief     : TFTP Message Codec Benchmark
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pt.cguimaraes.sstftp.message.AckView;
+import pt.cguimaraes.sstftp.message.AcknowledgeMessage;
+import pt.cguimaraes.sstftp.message.DataMessage;
+import pt.cguimaraes.sstftp.message.DataView;
+import pt.cguimaraes.sstftp.message.ErrorMessage;
+import pt.cguimaraes.sstftp.message.ErrorView;
+import pt.cguimaraes.sstftp.message.OptionAcknowledgeMessage;
+import pt.cguimaraes.sstftp.message.OptionAcknowledgeView;
+import pt.cguimaraes.sstftp.message.ReadRequestMessage;
+import pt.cguimaraes.sstftp.message.RequestView;
+import pt.cguimaraes.sstftp.message.TFTPMessage;
+import pt.cguimaraes.sstftp.message.WriteRequestMessage;
+
+// Encoding of every message type into a send buffer, and decoding from a
+// receive buffer through the views. Data blocks are decoded both the way
+// sessions read them (the view alone) and copied into a DataMessage.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageBenchmark {
+
+    private ReadRequestMessage rrq;
+    private WriteRequestMessage wrq;
+    private DataMessage data;
+    private AcknowledgeMessage ack;
+    private ErrorMessage error;
+    private OptionAcknowledgeMessage oack;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(2048);
+
+    // Encoded packets
+    private ByteBuffer rrqPacket;
+    private ByteBuffer wrqPacket;
+    private ByteBuffer dataPacket;
+    private ByteBuffer ackPacket;
+    private ByteBuffer errorPacket;
+    private ByteBuffer oackPacket;
+
+    private RequestView requestView = new RequestView();
+    private DataView dataView = new DataView();
+    private AckView ackView = new AckView();
+    private ErrorView errorView = new ErrorView();
+    private OptionAcknowledgeView oackView = new OptionAcknowledgeView();
+
+    @Setup
+    public void setup() {
+        HashMap<String, String> options = new HashMap<String, String>();
+        options.put("blksize", "1428");
+        options.put("tsize", "0");
+        options.put("windowsize", "16");
+
+        rrq = new ReadRequestMessage("images/pxelinux.0", "octet", options);
+        wrq = new WriteRequestMessage("backups/router-config.txt", "netascii", options);
+        data = new DataMessage(4242, new byte[1428]);
+        ack = new AcknowledgeMessage(4242);
+        error = new ErrorMessage(ErrorMessage.FILE_NOT_FOUND);
+        oack = new OptionAcknowledgeMessage(options);
+
+        rrqPacket = encode(rrq);
+        wrqPacket = encode(wrq);
+        dataPacket = encode(data);
+        ackPacket = encode(ack);
+        errorPacket = encode(error);
+        oackPacket = encode(oack);
+    }
+
+    private static ByteBuffer encode(TFTPMessage msg) {
+        ByteBuffer packet = ByteBuffer.allocate(2048);
+        msg.toBuffer(packet);
+        packet.flip();
+        return packet;
+    }
+
+    private ByteBuffer toBuffer(TFTPMessage msg) {
+        buffer.clear();
+        msg.toBuffer(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer encodeReadRequest() {
+        return toBuffer(rrq);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeWriteRequest() {
+        return toBuffer(wrq);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeData() {
+        return toBuffer(data);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeAcknowledge() {
+        return toBuffer(ack);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeError() {
+        return toBuffer(error);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeOptionAcknowledge() {
+        return toBuffer(oack);
+    }
+
+    @Benchmark
+    public ReadRequestMessage decodeReadRequest() {
+        requestView.wrap(rrqPacket);
+        return new ReadRequestMessage(requestView);
+    }
+
+    @Benchmark
+    public WriteRequestMessage decodeWriteRequest() {
+        requestView.wrap(wrqPacket);
+        return new WriteRequestMessage(requestView);
+    }
+
+    // getData() moves the packet position, as the next receive would
+    @Benchmark
+    public int decodeDataView() {
+        dataPacket.position(0);
+        dataView.wrap(dataPacket);
+        return dataView.getBlockNumber() + dataView.getData().remaining();
+    }
+
+    @Benchmark
+    public DataMessage decodeData() {
+        dataView.wrap(dataPacket);
+        return new DataMessage(dataView);
+    }
+
+    @Benchmark
+    public int decodeAcknowledgeView() {
+        ackView.wrap(ackPacket);
+        return ackView.getBlockNumber();
+    }
+
+    @Benchmark
+    public AcknowledgeMessage decodeAcknowledge() {
+        ackView.wrap(ackPacket);
+        return new AcknowledgeMessage(ackView);
+    }
+
+    @Benchmark
+    public ErrorMessage decodeError() {
+        errorView.wrap(errorPacket);
+        return new ErrorMessage(errorView);
+    }
+
+    @Benchmark
+    public OptionAcknowledgeMessage decodeOptionAcknowledge() {
+        oackView.wrap(oackPacket);
+        return new OptionAcknowledgeMessage(oackView);
+    }
+}
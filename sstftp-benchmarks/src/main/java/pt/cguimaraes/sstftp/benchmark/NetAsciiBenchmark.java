@@ -0,0 +1,159 @@
+//=============================================================================
+// Brief     : TFTP Netascii Benchmark
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pt.cguimaraes.sstftp.io.NetAsciiDecoder;
+import pt.cguimaraes.sstftp.io.NetAsciiEncoder;
+import pt.cguimaraes.sstftp.io.NetAsciiIndex;
+import pt.cguimaraes.sstftp.io.NetAsciiReader;
+
+// Netascii conversion of a 256 KiB text in blocks, as a transfer does it,
+// for texts of short, typical and long lines. Each operation converts the
+// whole text, except readBlock which reads one block at a random offset.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NetAsciiBenchmark {
+
+    private final static int TEXT_SIZE = 256 * 1024;
+
+    @Param({ "8", "80", "4096" })
+    public int lineLength;
+
+    @Param({ "1428" })
+    public int blockSize;
+
+    private ByteBuffer text;
+    private ByteBuffer netascii;
+    private ByteBuffer block;
+    private ByteBuffer decoded;
+
+    private NetAsciiEncoder encoder = new NetAsciiEncoder();
+    private NetAsciiDecoder decoder = new NetAsciiDecoder();
+    private NetAsciiIndex index;
+    private NetAsciiReader reader;
+    private Random random = new Random(42);
+
+    @Setup
+    public void setup() {
+        // Printable text with local line ends
+        byte[] content = new byte[TEXT_SIZE];
+        byte[] lineEnd = System.getProperty("line.separator").getBytes();
+        Random random = new Random(42);
+        int column = 0;
+        for (int i = 0; i < content.length; ++i) {
+            if (column == lineLength) {
+                for (int j = 0; j < lineEnd.length && i < content.length; ++j) {
+                    content[i++] = lineEnd[j];
+                }
+                --i;
+                column = 0;
+            } else {
+                content[i] = (byte) (' ' + random.nextInt(95));
+                ++column;
+            }
+        }
+        text = ByteBuffer.wrap(content);
+
+        block = ByteBuffer.allocate(blockSize);
+        decoded = ByteBuffer.allocate(blockSize + 1);
+
+        // Converted text, to be decoded
+        ByteBuffer converted = ByteBuffer.allocate(2 * TEXT_SIZE);
+        encoder.encode(text, converted, true);
+        converted.flip();
+        netascii = ByteBuffer.allocate(converted.remaining());
+        netascii.put(converted);
+        encoder.reset();
+
+        text.clear();
+        index = NetAsciiIndex.build(text);
+        reader = new NetAsciiReader(text, index);
+    }
+
+    @Benchmark
+    public long encode() {
+        text.clear();
+        encoder.reset();
+
+        long n = 0;
+        do {
+            block.clear();
+            encoder.encode(text, block, true);
+            n += block.position();
+        } while (text.hasRemaining() || encoder.hasPending());
+        return n;
+    }
+
+    @Benchmark
+    public long decode() {
+        decoder.reset();
+
+        long n = 0;
+        int length = netascii.capacity();
+        for (int offset = 0; offset < length; offset += blockSize) {
+            int end = Math.min(offset + blockSize, length);
+            netascii.limit(end).position(offset);
+            decoded.clear();
+            decoder.decode(netascii, decoded, end == length);
+            n += decoded.position();
+        }
+        return n;
+    }
+
+    @Benchmark
+    public NetAsciiIndex index() {
+        text.clear();
+        return NetAsciiIndex.build(text);
+    }
+
+    // Seek through the index to a block, as after a multicast rewind
+    @Benchmark
+    public int readBlock() {
+        long blocks = index.getLength() / blockSize;
+        block.clear();
+        return reader.read((random.nextInt((int) blocks) * (long) blockSize), block);
+    }
+}
@@ -0,0 +1,197 @@
+//=============================================================================
+// Brief     : TFTP Server Read Benchmark
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pt.cguimaraes.sstftp.message.ReadRequestMessage;
+import pt.cguimaraes.sstftp.message.TFTPMessage;
+import pt.cguimaraes.sstftp.server.TFTPServer;
+
+// Per-block read path of a server session: each operation takes one data
+// block from a running server over loopback and acknowledges it, so the
+// server reads (or converts) and sends the next block from handleAcknowledge.
+// A new transfer is requested whenever one ends.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerReadBenchmark {
+
+    private final static String FILE_NAME = "bench.txt";
+    private final static int FILE_SIZE = 8 * 1024 * 1024;
+
+    @Param({ "512", "1428", "8192", "65464" })
+    public int blockSize;
+
+    @Param({ "octet", "netascii" })
+    public String mode;
+
+    private File directory;
+    private TFTPServer server;
+    private InetSocketAddress listener;
+
+    // Client side of the current transfer
+    private DatagramSocket client;
+    private SocketAddress session;
+    private DatagramPacket packet;
+    private ByteBuffer received;
+    private byte[] ack = new byte[4];
+    private DatagramPacket ackPacket = new DatagramPacket(ack, ack.length);
+
+    @Setup
+    public void setup() throws IOException {
+        Logger.getGlobal().setLevel(Level.OFF);
+
+        // Text file, so both modes read the same content
+        directory = File.createTempFile("sstftp-bench", "");
+        directory.delete();
+        directory.mkdir();
+        Random random = new Random(42);
+        byte[] line = new byte[80];
+        OutputStream out = new FileOutputStream(new File(directory, FILE_NAME));
+        try {
+            for (int n = 0; n < FILE_SIZE; n += line.length) {
+                for (int i = 0; i < line.length - 1; ++i) {
+                    line[i] = (byte) (' ' + random.nextInt(95));
+                }
+                line[line.length - 1] = '\n';
+                out.write(line);
+            }
+        } finally {
+            out.close();
+        }
+
+        server = new TFTPServer(0, directory.getPath() + File.separator, 5, 2000, 20, 60000, -1, -1, -1, 1);
+        server.start();
+        listener = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+
+        byte[] buffer = new byte[blockSize + 4];
+        packet = new DatagramPacket(buffer, buffer.length);
+        received = ByteBuffer.wrap(buffer);
+        ack[1] = TFTPMessage.ACK;
+
+        request();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        client.close();
+        server.close();
+        new File(directory, FILE_NAME).delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    public int readBlock() throws IOException {
+        receive(TFTPMessage.DATA);
+        int block = received.getShort(2) & 0xFFFF;
+        int length = packet.getLength() - 4;
+        acknowledge(block);
+
+        if (length < blockSize) {
+            request();
+        }
+        return length;
+    }
+
+    // Request the file from a new port (the previous session may still be
+    // closing) and acknowledge the options
+    private void request() throws IOException {
+        if (client != null) {
+            client.close();
+        }
+        client = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        client.setSoTimeout(2000);
+
+        HashMap<String, String> options = new HashMap<String, String>();
+        options.put("blksize", Integer.toString(blockSize));
+        ByteBuffer rrq = ByteBuffer.allocate(512);
+        new ReadRequestMessage(FILE_NAME, mode, options).toBuffer(rrq);
+        client.send(new DatagramPacket(rrq.array(), rrq.position(), listener));
+
+        session = null;
+        receive(TFTPMessage.OACK);
+        acknowledge(0);
+    }
+
+    private void acknowledge(int block) throws IOException {
+        ack[2] = (byte) (block >> 8);
+        ack[3] = (byte) block;
+        ackPacket.setSocketAddress(session);
+        client.send(ackPacket);
+    }
+
+    private void receive(int opcode) throws IOException {
+        while (true) {
+            packet.setLength(packet.getData().length);
+            try {
+                client.receive(packet);
+            } catch (SocketTimeoutException e) {
+                throw new IOException("Server did not answer");
+            }
+            session = packet.getSocketAddress();
+
+            int type = received.getShort(0) & 0xFFFF;
+            if (type == opcode) {
+                return;
+            }
+            if (type == TFTPMessage.ERROR) {
+                throw new IOException("Server error " + received.getShort(2));
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+//=============================================================================
+// Brief     : TFTP Session Threads Benchmark
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pt.cguimaraes.sstftp.loadgen.LoadGenerator;
+import pt.cguimaraes.sstftp.server.TFTPServer;
+
+// Server sessions run on the event loops, or each on virtual or platform
+// threads of its own. Each operation is a batch of concurrent downloads of
+// a small file, all started at once by the load generator (on event loops),
+// so the batch size is the number of sessions alive together.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionThreadsBenchmark {
+
+    private final static String FILE_NAME = "bench.bin";
+    private final static int FILE_SIZE = 16 * 1024;
+
+    @Param({ "loop", "virtual", "platform" })
+    public String threads;
+
+    @Param({ "100", "1000" })
+    public int sessions;
+
+    private File directory;
+    private TFTPServer server;
+
+    @Setup
+    public void setup() throws IOException {
+        Logger.getGlobal().setLevel(Level.OFF);
+
+        directory = File.createTempFile("sstftp-bench", "");
+        directory.delete();
+        directory.mkdir();
+        OutputStream out = new FileOutputStream(new File(directory, FILE_NAME));
+        try {
+            out.write(new byte[FILE_SIZE]);
+        } finally {
+            out.close();
+        }
+
+        server = new TFTPServer(0, directory.getPath() + File.separator, 5, 2000, 20, 60000, -1, -1, -1, 1);
+        ThreadFactory factory = null;
+        if (threads.equals("virtual")) {
+            factory = Thread.ofVirtual().name("sstftp-bench-session-", 0).factory();
+        } else if (threads.equals("platform")) {
+            factory = Thread.ofPlatform().name("sstftp-bench-session-", 0).daemon().factory();
+        }
+        server.setSessionThreads(factory);
+        server.setMaxPendingRequests(0);
+        server.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        server.close();
+        new File(directory, FILE_NAME).delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    public long batch() throws IOException, InterruptedException {
+        LoadGenerator generator = new LoadGenerator(InetAddress.getLoopbackAddress(), server.getPort());
+        generator.addFile(FILE_NAME, 1);
+        generator.setSessions(sessions);
+        generator.setConcurrency(sessions);
+        generator.run(2);
+
+        if (generator.getFailed() > 0) {
+            throw new IOException(generator.getFailed() + " transfers failed");
+        }
+        return generator.getCompleted();
+    }
+}
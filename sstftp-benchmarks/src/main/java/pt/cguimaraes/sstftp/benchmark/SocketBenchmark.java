@@ -0,0 +1,160 @@
+//=============================================================================
+// Brief     : TFTP Socket Benchmark
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.benchmark;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pt.cguimaraes.sstftp.message.AckView;
+import pt.cguimaraes.sstftp.message.DataView;
+import pt.cguimaraes.sstftp.message.ErrorView;
+import pt.cguimaraes.sstftp.message.OptionAcknowledgeView;
+import pt.cguimaraes.sstftp.message.RequestView;
+import pt.cguimaraes.sstftp.socket.EventLoop;
+import pt.cguimaraes.sstftp.socket.TFTPMessageListener;
+import pt.cguimaraes.sstftp.socket.TFTPSocket;
+
+// One data block sent by a TFTPSocket and acknowledged by another over
+// loopback, each socket on its own event loop, as a session and a client.
+// An operation is a full round trip: the block handed to the sender loop,
+// received, acknowledged and the window slid.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SocketBenchmark {
+
+    @Param({ "512", "1428", "8192", "65464" })
+    public int blockSize;
+
+    private EventLoop senderLoop;
+    private EventLoop receiverLoop;
+    private TFTPSocket sender;
+    private TFTPSocket receiver;
+
+    private ByteBuffer payload;
+    private int block;
+    private Semaphore acked = new Semaphore(0);
+
+    private Runnable send = new Runnable() {
+        public void run() {
+            block = (block + 1) & 0xFFFF;
+            payload.clear();
+            sender.sendData(block, payload);
+        }
+    };
+
+    @Setup
+    public void setup() throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        payload = ByteBuffer.allocateDirect(blockSize);
+
+        receiver = new TFTPSocket(new Listener() {
+            public void onData(DataView data) {
+                receiver.sendAck(data.getBlockNumber());
+            }
+        });
+        receiver.bind(loopback, 0);
+
+        sender = new TFTPSocket(loopback, receiver.getLocalPort(), new Listener() {
+            public void onAck(AckView ack) {
+                acked.release();
+            }
+        });
+        receiver.setRemote(new InetSocketAddress(loopback, sender.getLocalPort()));
+
+        // Nothing is lost over loopback: a retransmitted acknowledge would
+        // only be taken for the next one between iterations
+        for (TFTPSocket socket : new TFTPSocket[] { sender, receiver }) {
+            socket.setBlockSize(blockSize);
+            socket.setAdaptiveTimeout(false);
+            socket.setTimeout(60000);
+        }
+
+        senderLoop = new EventLoop("sstftp-bench-sender");
+        receiverLoop = new EventLoop("sstftp-bench-receiver");
+        senderLoop.start();
+        receiverLoop.start();
+        sender.register(senderLoop);
+        receiver.register(receiverLoop);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        sender.close();
+        receiver.close();
+        senderLoop.shutdown();
+        receiverLoop.shutdown();
+        senderLoop.join();
+        receiverLoop.join();
+    }
+
+    @Benchmark
+    public void sendBlock() throws InterruptedException {
+        senderLoop.execute(send);
+        acked.acquire();
+    }
+
+    private static class Listener implements TFTPMessageListener {
+
+        public void onRequest(RequestView request) {
+        }
+
+        public void onData(DataView data) {
+        }
+
+        public void onAck(AckView ack) {
+        }
+
+        public void onError(ErrorView error) {
+        }
+
+        public void onOack(OptionAcknowledgeView oack) {
+        }
+
+        public void onTimeout() {
+        }
+    }
+}
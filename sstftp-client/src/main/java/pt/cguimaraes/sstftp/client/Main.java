@@ -1,10 +1,12 @@
 package pt.cguimaraes.sstftp.client;
 
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.HashMap;
 import java.util.Scanner;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -16,6 +18,10 @@ import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import pt.cguimaraes.sstftp.io.NetAsciiIndex;
+import pt.cguimaraes.sstftp.socket.RttEstimator;
+import pt.cguimaraes.sstftp.socket.TFTPSocket;
+
 public class Main {
 
     @SuppressWarnings("static-access")
@@ -54,9 +60,16 @@ public class Main {
                 .isRequired()
                 .create('a'));
         arguments.addOption(OptionBuilder.withLongOpt("blksize")
-                .withDescription("block size (default: 512)")
+                .withDescription("block size [8-65464] (default: 512)")
                 .hasArgs(1)
                 .create('b'));
+        arguments.addOption(OptionBuilder.withLongOpt("windowsize")
+                .withDescription("number of blocks sent per acknowledge [1-65535] (default: 1)")
+                .hasArgs(1)
+                .create('w'));
+        arguments.addOption(OptionBuilder.withLongOpt("multicast")
+                .withDescription("join a multicast transfer if the server supports it (RFC 2090)")
+                .create('g'));
         arguments.addOption(OptionBuilder.withLongOpt("no-tsize")
                 .withDescription("receive/send file length (default: enabled)")
                 .hasArgs(0)
@@ -69,6 +82,19 @@ public class Main {
                 .withDescription("timeout interval to retransmissions (ms) [1-255000] (default: 2000)")
                 .hasArgs(1)
                 .create('i'));
+        arguments.addOption(OptionBuilder.withLongOpt("min-interval")
+                .withDescription("minimum adaptive timeout to retransmissions (ms) (default: 20)")
+                .hasArgs(1)
+                .create('n'));
+        arguments.addOption(OptionBuilder.withLongOpt("max-interval")
+                .withDescription("maximum adaptive timeout to retransmissions (ms) (default: 60000)")
+                .hasArgs(1)
+                .create('x'));
+        arguments.addOption(OptionBuilder.withLongOpt("threads")
+                .withDescription("Run the transfer on the main thread, or on virtual threads [main, virtual]"
+                        + " (default: main)")
+                .hasArgs(1)
+                .create('t'));
         arguments.addOption(OptionBuilder.withLongOpt("log")
                 .withDescription("Log level [0-2] (default: 1)")
                 .hasArgs(1)
@@ -83,7 +109,10 @@ public class Main {
         int blksize = 512; // Default block size
         int retries = 3;
         int interval = 2000;
+        int minInterval = RttEstimator.DEFAULT_MIN_TIMEOUT;
+        int maxInterval = RttEstimator.DEFAULT_MAX_TIMEOUT;
         boolean tsize = true;
+        ThreadFactory threads = null;
         HashMap<String, String> options = new HashMap<String, String>();
 
         try {
@@ -132,11 +161,29 @@ public class Main {
             // Parse block size
             if (line.hasOption('b')) {
                 options.put("blksize", line.getOptionValue('b'));
-                if (Integer.parseInt(line.getOptionValue('b')) < 0) {
+                int tmp = Integer.parseInt(line.getOptionValue('b'));
+                if (tmp < TFTPSocket.MIN_BLOCK_SIZE || tmp > TFTPSocket.MAX_BLOCK_SIZE) {
                     throw new ParseException("Invalid block size");
                 }
             }
 
+            // Parse window size
+            if (line.hasOption('w')) {
+                options.put("windowsize", line.getOptionValue('w'));
+                int tmp = Integer.parseInt(line.getOptionValue('w'));
+                if (tmp < 1 || tmp > 65535) {
+                    throw new ParseException("Invalid window size");
+                }
+            }
+
+            // Parse multicast
+            if (line.hasOption('g')) {
+                if (!action.equals("get") || !mode.equals("octet")) {
+                    throw new ParseException("Multicast is only available to get files in octet mode");
+                }
+                options.put("multicast", "");
+            }
+
             // Parse receive/send file length
             if (line.hasOption('s')) {
                 tsize = false;
@@ -151,8 +198,8 @@ public class Main {
             }
 
             // Parse timeout interval to retransmissions
-            if (line.hasOption('t')) {
-                interval = Integer.parseInt(line.getOptionValue('t'));
+            if (line.hasOption('i')) {
+                interval = Integer.parseInt(line.getOptionValue('i'));
                 if (interval <= 0 || interval > 255000) {
                     throw new ParseException("Invalid timeout interval to retransmissions");
                 }
@@ -162,6 +209,27 @@ public class Main {
                 options.put("interval", Long.toString(roundUpSec));
             }
 
+            // Parse bounds of the adaptive timeout to retransmissions
+            if (line.hasOption('n')) {
+                minInterval = Integer.parseInt(line.getOptionValue('n'));
+            }
+            if (line.hasOption('x')) {
+                maxInterval = Integer.parseInt(line.getOptionValue('x'));
+            }
+            if (minInterval <= 0 || maxInterval < minInterval) {
+                throw new ParseException("Invalid bounds of timeout interval to retransmissions");
+            }
+
+            // Parse threads of the transfer
+            if (line.hasOption('t')) {
+                String value = line.getOptionValue('t').toLowerCase();
+                if (value.equals("virtual")) {
+                    threads = Thread.ofVirtual().name("sstftp-client-", 0).factory();
+                } else if (!value.equals("main")) {
+                    throw new ParseException("Invalid threads");
+                }
+            }
+
             // Parse log level
             logger.setLevel(Level.ALL); // Default log level
             if (line.hasOption('v')) {
@@ -202,8 +270,15 @@ public class Main {
                 System.exit(1);
             }
 
+            // Netascii files are announced with their converted size
             if (tsize) {
-                options.put("tsize", Long.toString(f.length()));
+                long size = f.length();
+                if (mode.equals("netascii")) {
+                    try (RandomAccessFile in = new RandomAccessFile(f, "r")) {
+                        size = NetAsciiIndex.build(in.getChannel()).getLength();
+                    }
+                }
+                options.put("tsize", Long.toString(size));
             }
 
         } else if (action.equals("get")) {
@@ -222,6 +297,7 @@ public class Main {
             }
         }
 
-        new TFTPClient(dstIp, dstPort, action, mode, path, retries, interval, blksize, options);
+        new TFTPClient(dstIp, dstPort, action, mode, path, retries, interval, minInterval, maxInterval, blksize,
+                options, threads);
     }
 }
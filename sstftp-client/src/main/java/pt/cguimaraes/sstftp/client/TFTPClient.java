@@ -25,31 +25,34 @@
 
 package pt.cguimaraes.sstftp.client;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.lang.reflect.Method;
 import java.net.InetAddress;
-import java.net.SocketException;
-import java.nio.channels.Channels;
-import java.util.Arrays;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Map.Entry;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
-import org.apache.commons.net.io.FromNetASCIIOutputStream;
-import org.apache.commons.net.io.ToNetASCIIInputStream;
-
+import pt.cguimaraes.sstftp.io.NetAsciiDecoder;
+import pt.cguimaraes.sstftp.io.NetAsciiEncoder;
+import pt.cguimaraes.sstftp.message.AckView;
 import pt.cguimaraes.sstftp.message.AcknowledgeMessage;
-import pt.cguimaraes.sstftp.message.DataMessage;
+import pt.cguimaraes.sstftp.message.DataView;
 import pt.cguimaraes.sstftp.message.ErrorMessage;
+import pt.cguimaraes.sstftp.message.ErrorView;
 import pt.cguimaraes.sstftp.message.OptionAcknowledgeMessage;
+import pt.cguimaraes.sstftp.message.OptionAcknowledgeView;
 import pt.cguimaraes.sstftp.message.ReadRequestMessage;
-import pt.cguimaraes.sstftp.message.TFTPMessage;
+import pt.cguimaraes.sstftp.message.RequestView;
 import pt.cguimaraes.sstftp.message.WriteRequestMessage;
+import pt.cguimaraes.sstftp.socket.TFTPMessageListener;
 import pt.cguimaraes.sstftp.socket.TFTPSocket;
 
-public class TFTPClient {
+public class TFTPClient implements TFTPMessageListener {
 
     private TFTPSocket socket;
 
@@ -59,14 +62,60 @@ public class TFTPClient {
     private int blksize;
     private int interval;
     private long fileSize;
+
+    // Bytes received as sent (netascii before conversion), checked against
+    // the transfer size
+    private long transferred;
     private HashMap<String, String> options;
 
     private RandomAccessFile file;
+    private byte[] block;
     private boolean sentLast = false;
 
+    // Netascii conversion buffers, reused for the whole transfer
+    private ByteBuffer raw;
+    private ByteBuffer text;
+    private boolean endOfFile;
+    private NetAsciiEncoder encoder;
+    private NetAsciiDecoder decoder;
+
+    // Window negotiated with windowsize option (RFC 7440)
+    private int window = 1;
+
+    // Next block to send (put) or expected block (get)
+    private int nextBlock = 1;
+    private int unacknowledged = 0;
+
+    // Multicast transfer (RFC 2090): blocks arrive through the group in any
+    // order and only the master client acknowledges them
+    private InetAddress server;
+    private TFTPSocket groupSocket;
+    private BitSet received;
+    private int lastBlock = -1;
+    private boolean master;
+
+    // Threads of the transfer and of the multicast group (null: the calling
+    // thread and a platform thread)
+    private ThreadFactory threads;
+
+    // Multicast data is received by its own thread. Not a monitor, so a
+    // virtual thread writing the file under it is not pinned to its carrier.
+    private ReentrantLock lock = new ReentrantLock();
+
     public TFTPClient(InetAddress dstIp, int dstPort, String action, String mode, String path,
-            int retries, int interval, int blksize, HashMap<String, String> options)
-            throws NoSuchMethodException, SecurityException, SocketException, FileNotFoundException {
+            int retries, int interval, int minInterval, int maxInterval, int blksize,
+            HashMap<String, String> options)
+            throws IOException {
+        this(dstIp, dstPort, action, mode, path, retries, interval, minInterval, maxInterval, blksize, options,
+                null);
+    }
+
+    // Run the transfer on a thread from threads (e.g. a virtual thread), the
+    // calling thread only waiting for it
+    public TFTPClient(InetAddress dstIp, int dstPort, String action, String mode, String path,
+            int retries, int interval, int minInterval, int maxInterval, int blksize,
+            HashMap<String, String> options, ThreadFactory threads)
+            throws IOException {
 
         this.action = action;
         this.mode = mode;
@@ -74,16 +123,12 @@ public class TFTPClient {
         this.interval = interval;
         this.fileSize = -1;
         this.options = options;
+        this.threads = threads;
 
-        Method handler = null;
-        if (action.equals("put")) {
-            handler = TFTPClient.class.getMethod("handler_put", new Class[] { TFTPMessage.class });
-        } else if (action.equals("get")) {
-            handler = TFTPClient.class.getMethod("handler_get", new Class[] { TFTPMessage.class });
-        }
-
-        socket = new TFTPSocket(dstIp, dstPort, this, handler);
+        server = dstIp;
+        socket = new TFTPSocket(dstIp, dstPort, this);
         socket.setRetries(retries);
+        socket.setTimeoutBounds(minInterval, maxInterval);
         socket.setTimeout(interval);
 
         if (action.equals("put")) {
@@ -100,82 +145,110 @@ public class TFTPClient {
             Logger.getGlobal().info("Downloading " + path + " from server in " + mode + " mode...");
         }
 
-        socket.run();
-    }
+        if (threads == null) {
+            socket.run();
+            return;
+        }
 
-    // TFTP message handler for PUT action
-    public void handler_put(TFTPMessage msg) {
-        switch (msg.getOpcode()) {
-            case TFTPMessage.ACK: {
-                AcknowledgeMessage msgAck = (AcknowledgeMessage) msg;
-                handleAcknowledge(msgAck);
-                break;
-            }
+        // Every transfer ends the process, this thread only keeps it alive
+        Thread transfer = threads.newThread(socket);
+        transfer.start();
+        try {
+            transfer.join();
+        } catch (InterruptedException e) {
+            socket.close();
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            case TFTPMessage.ERROR: {
-                ErrorMessage msgError = (ErrorMessage) msg;
-                handleError(msgError);
-                break;
-            }
+    public void onAck(AckView ack) {
+        if (!action.equals("put")) {
+            illegalOperation();
+            return;
+        }
 
-            case TFTPMessage.OACK: {
-                OptionAcknowledgeMessage msgOAck = (OptionAcknowledgeMessage) msg;
-                handleOptionAcknowledge(msgOAck, action);
-                break;
-            }
+        handleAcknowledge();
+    }
 
-            default: {
-                ErrorMessage msgError = new ErrorMessage(ErrorMessage.ILLEGAL_TFTP_OPERATION);
-                socket.send(msgError);
+    public void onData(DataView data) {
+        if (!action.equals("get")) {
+            illegalOperation();
+            return;
+        }
 
-                Logger.getGlobal().warning("Illegal TFTP Operation");
-                System.exit(1);
-                break;
+        lock.lock();
+        try {
+            if (groupSocket != null) {
+                handleMulticastData(data);
+            } else {
+                handleData(data);
             }
+        } finally {
+            lock.unlock();
         }
     }
 
-    // TFTP message handler for GET action
-    public void handler_get(TFTPMessage msg) {
-        switch (msg.getOpcode()) {
-            case TFTPMessage.DATA: {
-                DataMessage msgData = (DataMessage) msg;
-                handleData(msgData);
-                break;
-            }
+    public void onError(ErrorView error) {
+        handleError(error);
+    }
 
-            case TFTPMessage.ERROR: {
-                ErrorMessage msgError = (ErrorMessage) msg;
-                handleError(msgError);
-                break;
-            }
+    public void onOack(OptionAcknowledgeView oack) {
+        lock.lock();
+        try {
+            handleOptionAcknowledge(new OptionAcknowledgeMessage(oack), action);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            case TFTPMessage.OACK: {
-                OptionAcknowledgeMessage msgOAck = (OptionAcknowledgeMessage) msg;
-                handleOptionAcknowledge(msgOAck, action);
-                break;
-            }
+    public void onTimeout() {
+        Logger.getGlobal().severe("Transfer timed out");
+        System.exit(1);
+    }
 
-            default: {
-                ErrorMessage msgError = new ErrorMessage(ErrorMessage.ILLEGAL_TFTP_OPERATION);
-                socket.send(msgError);
+    public void onRequest(RequestView request) {
+        illegalOperation();
+    }
 
-                Logger.getGlobal().warning("Illegal TFTP Operation");
-                System.exit(1);
-                break;
-            }
-        }
+    private void illegalOperation() {
+        ErrorMessage msgError = new ErrorMessage(ErrorMessage.ILLEGAL_TFTP_OPERATION);
+        socket.send(msgError);
+
+        Logger.getGlobal().warning("Illegal TFTP Operation");
+        System.exit(1);
     }
 
     // Handle TFTP Data message: write data to file
-    private void handleData(DataMessage msgData) {
+    private void handleData(DataView msgData) {
+        int length = msgData.getDataLength();
+
+        // Duplicate or out of order block: acknowledge the last block
+        // received in order, so the server resends from the next one
+        if (msgData.getBlockNumber() != nextBlock) {
+            socket.sendAck(nextBlock - 1);
+            unacknowledged = 0;
+            return;
+        }
+
         try {
             if (mode.equals("octet")) {
-                file.write(msgData.getData(), 0, msgData.getData().length);
+                msgData.writeData(file.getChannel());
             } else if (mode.equals("netascii")) {
-                @SuppressWarnings("resource")
-                FromNetASCIIOutputStream is = new FromNetASCIIOutputStream(Channels.newOutputStream(file.getChannel()));
-                is.write(msgData.getData(), 0, msgData.getData().length);
+                // Decoded text is at most one byte longer (a CR held back
+                // from the previous block)
+                if (text == null || text.capacity() < length + 1) {
+                    text = ByteBuffer.allocate(Math.max(blksize, length) + 1);
+                }
+                if (decoder == null) {
+                    decoder = new NetAsciiDecoder();
+                }
+
+                text.clear();
+                decoder.decode(msgData.getData(), text, length < blksize);
+                text.flip();
+                while (text.hasRemaining()) {
+                    file.getChannel().write(text);
+                }
             }
         } catch (IOException e) {
             ErrorMessage errorMsg = new ErrorMessage(ErrorMessage.ACCESS_VIOLATION);
@@ -185,46 +258,154 @@ public class TFTPClient {
             System.exit(1);
         }
 
-        // Acknowledge the TFTP Data message
-        AcknowledgeMessage msgAck = new AcknowledgeMessage(msgData.getBlockNumber());
-        socket.send(msgAck);
+        transferred += length;
+
+        // Acknowledge the TFTP Data message at the end of each window
+        nextBlock = (nextBlock + 1) & 0xFFFF;
+        if (++unacknowledged == window || length < blksize) {
+            socket.sendAck(msgData.getBlockNumber());
+            unacknowledged = 0;
+        }
 
         // If data length lower than block size, transfer is complete
-        if (msgData.getData().length < blksize) {
+        if (length < blksize) {
             Logger.getGlobal().info("Transfer complete");
+            if (fileSize != -1 && transferred != fileSize) {
+                Logger.getGlobal()
+                        .warning("File size is different from the transfer size reported by the TFTP Server.");
+            }
+
+            System.exit(0);
+        }
+    }
+
+    // Handle TFTP Data message of a multicast transfer: write data to its
+    // place in the file
+    private void handleMulticastData(DataView msgData) {
+        int blockNumber = msgData.getBlockNumber();
+        int length = msgData.getDataLength();
+
+        // The server is alive, whatever socket the data came through
+        socket.stopRetransmission();
+
+        if (blockNumber != 0 && !received.get(blockNumber)) {
             try {
-                if (fileSize != -1 && file.length() != fileSize) {
-                    Logger.getGlobal()
-                            .warning("File size is different from the transfer size reported by the TFTP Server.");
-                }
+                file.getChannel().position((long) (blockNumber - 1) * blksize);
+                msgData.writeData(file.getChannel());
             } catch (IOException e) {
-                e.printStackTrace();
+                ErrorMessage errorMsg = new ErrorMessage(ErrorMessage.ACCESS_VIOLATION);
+                socket.send(errorMsg);
+
+                Logger.getGlobal().warning("Cannot write on file");
+                System.exit(1);
+            }
+
+            received.set(blockNumber);
+            if (length < blksize) {
+                lastBlock = blockNumber;
+            }
+            while (received.get(nextBlock)) {
+                ++nextBlock;
+            }
+        }
+
+        // Ask for the first block missing. Duplicates are acknowledged again
+        // in case the acknowledge was lost.
+        if (master) {
+            socket.sendAck(nextBlock - 1);
+        }
+
+        if (lastBlock != -1 && nextBlock > lastBlock) {
+            // Let the server know that this client is done, even when it
+            // is not the master client
+            if (!master) {
+                socket.sendAck(lastBlock);
             }
 
+            Logger.getGlobal().info("Transfer complete");
             System.exit(0);
         }
     }
 
-    // Handle TFTP Acknowledge message: send data to server
-    private void handleAcknowledge(AcknowledgeMessage msgAck) {
-        byte[] b = new byte[blksize];
+    // Join the group of a multicast transfer ("address,port,master")
+    private void handleMulticast(String value) throws IOException {
+        String[] fields = value.split(",");
+        if (fields.length != 3) {
+            throw new IOException("Invalid multicast option: " + value);
+        }
 
-        try {
-            int n = -1;
+        master = fields[2].trim().equals("1");
+        if (groupSocket == null) {
+            InetSocketAddress group = new InetSocketAddress(InetAddress.getByName(fields[0].trim()),
+                    Integer.parseInt(fields[1].trim()));
+            groupSocket = new TFTPSocket(group, TFTPSocket.interfaceTowards(server), this);
+            received = new BitSet();
 
-            if (mode.equals("octet")) {
-                n = file.read(b);
-            } else if (mode.equals("netascii")) {
-                @SuppressWarnings("resource")
-                ToNetASCIIInputStream is = new ToNetASCIIInputStream(Channels.newInputStream(file.getChannel()));
-                n = is.read(b);
+            Thread thread = threads != null ? threads.newThread(groupSocket)
+                    : new Thread(groupSocket, "sstftp-multicast");
+            thread.setDaemon(true);
+            thread.start();
+
+            Logger.getGlobal().info("Joined multicast group " + group);
+        }
+    }
+
+    // Handle TFTP Acknowledge message: fill the window with new blocks.
+    // The socket already slid its window over the acknowledged blocks.
+    private void handleAcknowledge() {
+        // Transfer is only complete when the last block is acknowledged
+        if (sentLast) {
+            if (socket.getInFlight() == 0) {
+                Logger.getGlobal().info("Transfer complete");
+                System.exit(0);
+            }
+            return;
+        }
+
+        // Block buffer is reused for the whole transfer
+        if (block == null || block.length != blksize) {
+            block = new byte[blksize];
+        }
+        byte[] b = block;
+
+        while (!sentLast && !socket.isWindowFull()) {
+            sendBlock(b);
+        }
+    }
+
+    // Fill text with the next block converted to netascii
+    private void readText() throws IOException {
+        if (text == null || text.capacity() != blksize) {
+            raw = ByteBuffer.allocate(blksize);
+            raw.flip();
+            text = ByteBuffer.allocate(blksize);
+            encoder = new NetAsciiEncoder();
+        }
+
+        text.clear();
+        while (text.hasRemaining()) {
+            if (!raw.hasRemaining() && !endOfFile) {
+                raw.clear();
+                endOfFile = file.getChannel().read(raw) == -1;
+                raw.flip();
             }
 
-            // If data to send is lower than block size, transfer is complete
-            // Note: transfer is only complete when acknowledge to the last
-            // TFTP Data message is received
-            if (n < blksize) {
-                if (!sentLast) {
+            encoder.encode(raw, text, endOfFile);
+            if (endOfFile && !encoder.hasPending()) {
+                break;
+            }
+        }
+        text.flip();
+    }
+
+    // Read the next block and send it to server
+    private void sendBlock(byte[] b) {
+        try {
+            if (mode.equals("octet")) {
+                int n = file.read(b);
+
+                // If data to send is lower than block size, this is the last block
+                if (n < blksize) {
                     sentLast = true;
 
                     // If file.length % bSize == 0, send last data packet
@@ -232,14 +413,19 @@ public class TFTPClient {
                     if (n == -1) {
                         n = 0;
                     }
-                } else {
-                    Logger.getGlobal().info("Transfer complete");
-                    System.exit(0);
                 }
+
+                socket.sendData(nextBlock, b, 0, n);
+            } else if (mode.equals("netascii")) {
+                readText();
+                if (text.remaining() < blksize) {
+                    sentLast = true;
+                }
+
+                socket.sendData(nextBlock, text);
             }
 
-            DataMessage msgData = new DataMessage(msgAck.getBlockNumber() + 1, Arrays.copyOfRange(b, 0, n));
-            socket.send(msgData);
+            nextBlock = (nextBlock + 1) & 0xFFFF;
         } catch (IOException e) {
             ErrorMessage msgError = new ErrorMessage(ErrorMessage.ACCESS_VIOLATION);
             socket.send(msgError);
@@ -250,7 +436,7 @@ public class TFTPClient {
     }
 
     // Handle TFTP Error message
-    private void handleError(ErrorMessage msgError) {
+    private void handleError(ErrorView msgError) {
         Logger.getGlobal().info("Error (" + msgError.getErrorCode() + "): " + msgError.getErrorMsg());
         socket.close();
         System.exit(0);
@@ -266,6 +452,11 @@ public class TFTPClient {
                 switch (entry.getKey()) {
                     case "blksize": {
                         blksize = Integer.parseInt(entry.getValue());
+                        try {
+                            socket.setBlockSize(blksize);
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
                         break;
                     }
 
@@ -274,10 +465,34 @@ public class TFTPClient {
                         break;
                     }
 
+                    case "windowsize": {
+                        window = Integer.parseInt(entry.getValue());
+                        try {
+                            socket.setWindowSize(window);
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                        break;
+                    }
+
+                    case "multicast": {
+                        try {
+                            handleMulticast(entry.getValue());
+                        } catch (IOException e) {
+                            ErrorMessage msgError = new ErrorMessage(ErrorMessage.NOT_DEFINED);
+                            socket.send(msgError);
+
+                            Logger.getGlobal().warning("Cannot join multicast group: " + e.getMessage());
+                            System.exit(1);
+                        }
+                        break;
+                    }
+
                     case "interval": {
                         int receivedInterval = Integer.parseInt(entry.getValue()) * 1000;
                         if (receivedInterval > 0 && receivedInterval <= interval) {
                             interval = receivedInterval;
+                            socket.setAdaptiveTimeout(false);
                             socket.setTimeout(interval);
                         } else {
                             ErrorMessage msgError = new ErrorMessage(ErrorMessage.ILLEGAL_TFTP_OPERATION);
@@ -302,12 +517,17 @@ public class TFTPClient {
         }
 
         if (action.compareTo("get") == 0) {
-            AcknowledgeMessage ackMsg = new AcknowledgeMessage(0);
-            socket.send(ackMsg);
+            // Only the master client of a multicast transfer acknowledges,
+            // starting from the first block it misses
+            if (groupSocket == null) {
+                AcknowledgeMessage ackMsg = new AcknowledgeMessage(0);
+                socket.send(ackMsg);
+            } else if (master) {
+                socket.sendAck(nextBlock - 1);
+            }
         } else if (action.compareTo("put") == 0) {
             // Fake acknowledge message to start sending the file
-            AcknowledgeMessage ackMsg = new AcknowledgeMessage(0);
-            handleAcknowledge(ackMsg);
+            handleAcknowledge();
         }
     }
 }
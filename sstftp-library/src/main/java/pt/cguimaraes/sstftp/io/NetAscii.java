@@ -0,0 +1,98 @@
+//=============================================================================
+// Brief     : TFTP Netascii Constants and Scanning
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.io;
+
+import java.nio.ByteBuffer;
+
+// Netascii (RFC 764) ends lines with CR LF and escapes a bare CR as CR NUL.
+// Text is scanned eight bytes at a time for CR and LF, so runs of plain
+// characters are copied in bulk.
+final class NetAscii {
+
+    final static byte CR = '\r';
+    final static byte LF = '\n';
+    final static byte NUL = 0;
+
+    // Local end of line is CR LF (e.g. Windows) instead of LF
+    final static boolean NATIVE_CRLF = "\r\n".equals(System.getProperty("line.separator"));
+
+    // Bytes to convert when encoding
+    private final static boolean[] SPECIAL = new boolean[256];
+    static {
+        SPECIAL[CR & 0xFF] = true;
+        SPECIAL[LF & 0xFF] = true;
+    }
+
+    private final static long ONES = 0x0101010101010101L;
+    private final static long HIGHS = 0x8080808080808080L;
+    private final static long CRS = 0x0D0D0D0D0D0D0D0DL;
+    private final static long LFS = 0x0A0A0A0A0A0A0A0AL;
+
+    private NetAscii() {
+    }
+
+    // Index of the first CR or LF in [from, to), or to if none
+    static int scanLine(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        while (i + 8 <= to && !hasByte(buffer.getLong(i), CRS) && !hasByte(buffer.getLong(i), LFS)) {
+            i += 8;
+        }
+        while (i < to && !SPECIAL[buffer.get(i) & 0xFF]) {
+            ++i;
+        }
+        return i;
+    }
+
+    // Index of the first CR in [from, to), or to if none
+    static int scanCR(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        while (i + 8 <= to && !hasByte(buffer.getLong(i), CRS)) {
+            i += 8;
+        }
+        while (i < to && buffer.get(i) != CR) {
+            ++i;
+        }
+        return i;
+    }
+
+    // Copy n bytes in bulk
+    static void copy(ByteBuffer src, ByteBuffer dst, int n) {
+        if (n == 0) {
+            return;
+        }
+
+        int limit = src.limit();
+        src.limit(src.position() + n);
+        dst.put(src);
+        src.limit(limit);
+    }
+
+    // Whether any byte of word equals the byte repeated in pattern
+    private static boolean hasByte(long word, long pattern) {
+        long x = word ^ pattern;
+        return ((x - ONES) & ~x & HIGHS) != 0;
+    }
+}
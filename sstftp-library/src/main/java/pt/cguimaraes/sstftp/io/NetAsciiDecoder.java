@@ -0,0 +1,90 @@
+//=============================================================================
+// Brief     : TFTP Netascii Decoder
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.io;
+
+import static pt.cguimaraes.sstftp.io.NetAscii.CR;
+import static pt.cguimaraes.sstftp.io.NetAscii.LF;
+import static pt.cguimaraes.sstftp.io.NetAscii.NATIVE_CRLF;
+import static pt.cguimaraes.sstftp.io.NetAscii.NUL;
+
+import java.nio.ByteBuffer;
+
+// Converts netascii to local text in place, block after block. A CR ending
+// a block is carried over to the next one, so one decoder serves a whole
+// transfer without allocating.
+public class NetAsciiDecoder {
+
+    // A CR ended the previous input, the next byte gives its meaning
+    private boolean afterCR;
+
+    // Decode all of src into dst, which needs room for src.remaining() + 1
+    // bytes. endOfInput tells that src holds the end of the text.
+    public void decode(ByteBuffer src, ByteBuffer dst, boolean endOfInput) {
+        while (true) {
+            if (afterCR) {
+                if (!src.hasRemaining()) {
+                    // A CR ending the text is kept
+                    if (endOfInput) {
+                        dst.put(CR);
+                        afterCR = false;
+                    }
+                    return;
+                }
+
+                // CR LF -> end of line, CR NUL -> CR, bare CR kept
+                byte b = src.get(src.position());
+                if (b == LF) {
+                    src.get();
+                    if (NATIVE_CRLF) {
+                        dst.put(CR);
+                    }
+                    dst.put(LF);
+                } else {
+                    if (b == NUL) {
+                        src.get();
+                    }
+                    dst.put(CR);
+                }
+                afterCR = false;
+            }
+
+            int start = src.position();
+            int end = src.limit();
+            int cr = NetAscii.scanCR(src, start, end);
+            NetAscii.copy(src, dst, cr - start);
+            if (cr == end) {
+                return;
+            }
+
+            src.get();
+            afterCR = true;
+        }
+    }
+
+    public void reset() {
+        afterCR = false;
+    }
+}
@@ -0,0 +1,125 @@
+//=============================================================================
+// Brief     : TFTP Netascii Encoder
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.io;
+
+import static pt.cguimaraes.sstftp.io.NetAscii.CR;
+import static pt.cguimaraes.sstftp.io.NetAscii.LF;
+import static pt.cguimaraes.sstftp.io.NetAscii.NATIVE_CRLF;
+import static pt.cguimaraes.sstftp.io.NetAscii.NUL;
+
+import java.nio.ByteBuffer;
+
+// Converts local text to netascii in place, block after block. A line end
+// split between two blocks is carried over, so one encoder serves a whole
+// transfer without allocating.
+public class NetAsciiEncoder {
+
+    // Second byte of a sequence that did not fit in the block, -1 if none
+    private int pending = -1;
+
+    // With native CR LF line ends, a CR ended the input and the next byte
+    // decides between CR LF and CR NUL
+    private boolean afterCR;
+
+    // Encode from src into dst until either is exhausted. endOfInput tells
+    // that src holds the end of the text.
+    public void encode(ByteBuffer src, ByteBuffer dst, boolean endOfInput) {
+        if (pending != -1) {
+            if (!dst.hasRemaining()) {
+                return;
+            }
+            dst.put((byte) pending);
+            pending = -1;
+        }
+
+        if (afterCR) {
+            if (src.hasRemaining()) {
+                if (!dst.hasRemaining()) {
+                    return;
+                }
+                if (src.get(src.position()) == LF) {
+                    src.get();
+                    dst.put(LF);
+                } else {
+                    dst.put(NUL);
+                }
+                afterCR = false;
+            } else if (!endOfInput) {
+                return;
+            }
+        }
+
+        while (src.hasRemaining() && dst.hasRemaining()) {
+            int start = src.position();
+            int end = start + Math.min(src.remaining(), dst.remaining());
+            int special = NetAscii.scanLine(src, start, end);
+            NetAscii.copy(src, dst, special - start);
+            if (special == end) {
+                continue;
+            }
+
+            // LF -> CR LF, CR -> CR NUL (CR LF kept as is if native)
+            byte b = src.get();
+            dst.put(CR);
+            if (b == LF) {
+                put(dst, LF);
+            } else if (!NATIVE_CRLF) {
+                put(dst, NUL);
+            } else if (!src.hasRemaining()) {
+                afterCR = true;
+            } else if (src.get(src.position()) == LF) {
+                src.get();
+                put(dst, LF);
+            } else {
+                put(dst, NUL);
+            }
+        }
+
+        // A CR ending the text is a bare CR
+        if (afterCR && endOfInput && !src.hasRemaining() && dst.hasRemaining()) {
+            dst.put(NUL);
+            afterCR = false;
+        }
+    }
+
+    // Output is still owed, even if the input is exhausted
+    public boolean hasPending() {
+        return pending != -1 || afterCR;
+    }
+
+    public void reset() {
+        pending = -1;
+        afterCR = false;
+    }
+
+    private void put(ByteBuffer dst, byte b) {
+        if (dst.hasRemaining()) {
+            dst.put(b);
+        } else {
+            pending = b;
+        }
+    }
+}
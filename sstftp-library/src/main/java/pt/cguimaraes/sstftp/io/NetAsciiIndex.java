@@ -0,0 +1,175 @@
+//=============================================================================
+// Brief     : TFTP Netascii Index
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.io;
+
+import static pt.cguimaraes.sstftp.io.NetAscii.CR;
+import static pt.cguimaraes.sstftp.io.NetAscii.LF;
+import static pt.cguimaraes.sstftp.io.NetAscii.NATIVE_CRLF;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+// Length of a text once converted to netascii, and checkpoints mapping
+// converted offsets to offsets in the text about every STRIDE converted
+// bytes. Built with one scan, so the converted size is known up front and
+// any block can be encoded without converting the text before it.
+public class NetAsciiIndex {
+
+    // Converted bytes between checkpoints
+    public final static int STRIDE = 1 << 16;
+
+    private long length;
+    private long rawLength;
+
+    // Checkpoints, each at the start of a line end sequence or of a plain
+    // character, so encoding can restart there
+    private long[] offsets = new long[16];
+    private long[] rawOffsets = new long[16];
+    private int count;
+
+    // Scan state
+    private long boundary = STRIDE;
+    private boolean afterCR;
+
+    private NetAsciiIndex() {
+        add(0, 0);
+    }
+
+    // Index of a text held in memory
+    public static NetAsciiIndex build(ByteBuffer content) {
+        NetAsciiIndex index = new NetAsciiIndex();
+        index.scan(content.duplicate());
+        return index;
+    }
+
+    // Index of a text read until the end of the channel
+    public static NetAsciiIndex build(ReadableByteChannel channel) throws IOException {
+        NetAsciiIndex index = new NetAsciiIndex();
+        ByteBuffer buffer = ByteBuffer.allocate(STRIDE);
+        while (channel.read(buffer) != -1) {
+            buffer.flip();
+            index.scan(buffer);
+            buffer.clear();
+        }
+        return index;
+    }
+
+    // Converted length
+    public long getLength() {
+        return length;
+    }
+
+    // Length of the text
+    public long getRawLength() {
+        return rawLength;
+    }
+
+    public int getCheckpointCount() {
+        return count;
+    }
+
+    // Last checkpoint at or before a converted offset
+    public int floor(long offset) {
+        int i = Arrays.binarySearch(offsets, 0, count, offset);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    // Converted offset of a checkpoint
+    public long getOffset(int checkpoint) {
+        return offsets[checkpoint];
+    }
+
+    // Offset in the text of a checkpoint
+    public long getRawOffset(int checkpoint) {
+        return rawOffsets[checkpoint];
+    }
+
+    private void scan(ByteBuffer chunk) {
+        while (chunk.hasRemaining()) {
+            int start = chunk.position();
+            int end = chunk.limit();
+
+            // With native CR LF line ends, CR LF stays two bytes and a bare
+            // CR becomes CR NUL, both already counted with the CR
+            if (afterCR) {
+                if (chunk.get(start) == LF) {
+                    chunk.get();
+                    ++rawLength;
+                }
+                afterCR = false;
+                mark();
+                continue;
+            }
+
+            // Plain characters, checkpoints go exactly on the boundaries
+            int special = NetAscii.scanLine(chunk, start, end);
+            int run = special - start;
+            while (length + run >= boundary) {
+                add(boundary, rawLength + (boundary - length));
+                boundary += STRIDE;
+            }
+            length += run;
+            rawLength += run;
+            chunk.position(special);
+
+            if (special < end) {
+                // LF -> CR LF, CR -> CR NUL
+                byte b = chunk.get();
+                length += 2;
+                ++rawLength;
+                if (NATIVE_CRLF && b == CR) {
+                    afterCR = true;
+                } else {
+                    mark();
+                }
+            }
+        }
+    }
+
+    // Add a checkpoint after a line end sequence crossing a boundary
+    private void mark() {
+        if (length >= boundary) {
+            add(length, rawLength);
+            boundary = (length / STRIDE + 1) * STRIDE;
+        }
+    }
+
+    private void add(long offset, long rawOffset) {
+        if (count > 0 && offsets[count - 1] == offset) {
+            return;
+        }
+
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+            rawOffsets = Arrays.copyOf(rawOffsets, count * 2);
+        }
+        offsets[count] = offset;
+        rawOffsets[count] = rawOffset;
+        ++count;
+    }
+}
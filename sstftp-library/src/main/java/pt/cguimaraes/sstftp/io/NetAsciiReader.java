@@ -0,0 +1,96 @@
+//=============================================================================
+// Brief     : TFTP Netascii Block Reader
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.io;
+
+import java.nio.ByteBuffer;
+
+// Reads any range of a text held in memory as netascii. Consecutive reads
+// carry on from where the previous one stopped; other ones restart from
+// the nearest checkpoint of the index, so blocks can be sent in any order.
+public class NetAsciiReader {
+
+    private ByteBuffer content;
+    private NetAsciiIndex index;
+    private NetAsciiEncoder encoder = new NetAsciiEncoder();
+
+    // Converted offset of the next byte read
+    private long offset;
+
+    // Converted bytes skipped after a checkpoint are dropped here
+    private ByteBuffer skip;
+
+    // The text starts at the current position of content
+    public NetAsciiReader(ByteBuffer content, NetAsciiIndex index) {
+        this.content = content.slice();
+        this.index = index;
+    }
+
+    // Fill dst with the converted text from offset, less only at the end
+    public int read(long offset, ByteBuffer dst) {
+        if (offset != this.offset) {
+            seek(offset);
+        }
+
+        int start = dst.position();
+        fill(dst);
+        this.offset += dst.position() - start;
+        return dst.position() - start;
+    }
+
+    public NetAsciiIndex getIndex() {
+        return index;
+    }
+
+    private void seek(long offset) {
+        int checkpoint = index.floor(offset);
+        content.position((int) index.getRawOffset(checkpoint));
+        encoder.reset();
+
+        if (skip == null) {
+            skip = ByteBuffer.allocate(4096);
+        }
+
+        long n = offset - index.getOffset(checkpoint);
+        while (n > 0) {
+            skip.clear();
+            skip.limit((int) Math.min(n, skip.capacity()));
+            int skipped = fill(skip);
+            if (skipped == 0) {
+                break;
+            }
+            n -= skipped;
+        }
+        this.offset = offset;
+    }
+
+    private int fill(ByteBuffer dst) {
+        int start = dst.position();
+        while (dst.hasRemaining() && (content.hasRemaining() || encoder.hasPending())) {
+            encoder.encode(content, dst, true);
+        }
+        return dst.position() - start;
+    }
+}
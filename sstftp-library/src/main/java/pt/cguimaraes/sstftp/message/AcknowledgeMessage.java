@@ -28,6 +28,7 @@ package pt.cguimaraes.sstftp.message;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 public class AcknowledgeMessage extends TFTPMessage {
 
@@ -43,6 +44,11 @@ public class AcknowledgeMessage extends TFTPMessage {
         super(address, port);
     }
 
+    public AcknowledgeMessage(AckView view) {
+        super(view);
+        this.blockNumber = view.getBlockNumber();
+    }
+
     public AcknowledgeMessage(int blockNumber) {
         super();
         this.opcode = ACK;
@@ -55,6 +61,11 @@ public class AcknowledgeMessage extends TFTPMessage {
         stream.write((byte) (blockNumber & 0x00FF));
     }
 
+    public void toBuffer(ByteBuffer buffer) {
+        super.toBuffer(buffer);
+        buffer.putShort((short) blockNumber);
+    }
+
     public void fromBytes(ByteArrayInputStream stream) {
         super.fromBytes(stream);
         blockNumber = (stream.read() << 8) | stream.read();
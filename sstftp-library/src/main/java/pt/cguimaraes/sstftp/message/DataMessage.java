@@ -28,6 +28,7 @@ package pt.cguimaraes.sstftp.message;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 public class DataMessage extends TFTPMessage {
 
@@ -45,6 +46,13 @@ public class DataMessage extends TFTPMessage {
         super(address, port);
     }
 
+    public DataMessage(DataView view) {
+        super(view);
+        this.blockNumber = view.getBlockNumber();
+        this.data = new byte[view.getDataLength()];
+        view.copyData(data, 0);
+    }
+
     public DataMessage(int blockNumber, byte[] data) {
         super();
         this.opcode = DATA;
@@ -59,13 +67,17 @@ public class DataMessage extends TFTPMessage {
         stream.write(data, 0, data.length);
     }
 
+    public void toBuffer(ByteBuffer buffer) {
+        super.toBuffer(buffer);
+        buffer.putShort((short) blockNumber);
+        buffer.put(data, 0, data.length);
+    }
+
     public void fromBytes(ByteArrayInputStream stream) {
         super.fromBytes(stream);
         blockNumber = (stream.read() << 8) | stream.read();
         data = new byte[stream.available()];
-        for (int i = 0; stream.available() > 0; ++i) {
-            data[i] = (byte) stream.read();
-        }
+        stream.read(data, 0, data.length);
     }
 
     public int getBlockNumber() {
@@ -0,0 +1,88 @@
+//=============================================================================
+// Brief     : TFTP Data Message View
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+public class DataView extends MessageView {
+
+    public boolean wrap(ByteBuffer buffer) {
+        return super.wrap(buffer) && length >= 4;
+    }
+
+    public int getBlockNumber() {
+        return getUnsignedShort(2);
+    }
+
+    public int getDataOffset() {
+        return offset + 4;
+    }
+
+    public int getDataLength() {
+        return length - 4;
+    }
+
+    public void copyData(byte[] dst, int dstOffset) {
+        int start = getDataOffset();
+        int len = getDataLength();
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + start, dst, dstOffset, len);
+        } else {
+            for (int i = 0; i < len; ++i) {
+                dst[dstOffset + i] = buffer.get(start + i);
+            }
+        }
+    }
+
+    // Position the receive buffer on the payload, to read it in place while
+    // the message is handled
+    public ByteBuffer getData() {
+        buffer.limit(getDataOffset() + getDataLength());
+        buffer.position(getDataOffset());
+        return buffer;
+    }
+
+    // Write the payload straight from the receive buffer
+    public int writeData(WritableByteChannel channel) throws IOException {
+        int position = buffer.position();
+        int limit = buffer.limit();
+
+        buffer.limit(getDataOffset() + getDataLength());
+        buffer.position(getDataOffset());
+        try {
+            int n = 0;
+            while (buffer.hasRemaining()) {
+                n += channel.write(buffer);
+            }
+            return n;
+        } finally {
+            buffer.limit(limit);
+            buffer.position(position);
+        }
+    }
+}
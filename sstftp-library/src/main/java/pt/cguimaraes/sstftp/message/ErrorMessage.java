@@ -28,6 +28,7 @@ package pt.cguimaraes.sstftp.message;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 public class ErrorMessage extends TFTPMessage {
 
@@ -70,6 +71,12 @@ public class ErrorMessage extends TFTPMessage {
         super(address, port);
     }
 
+    public ErrorMessage(ErrorView view) {
+        super(view);
+        this.errorCode = view.getErrorCode();
+        this.errorMsg = view.getErrorMsg();
+    }
+
     public ErrorMessage(int errorCode) {
         super();
         this.opcode = ERROR;
@@ -87,6 +94,13 @@ public class ErrorMessage extends TFTPMessage {
         stream.write(0);
     }
 
+    public void toBuffer(ByteBuffer buffer) {
+        super.toBuffer(buffer);
+        buffer.putShort((short) errorCode);
+        buffer.put(errorMsg.getBytes());
+        buffer.put((byte) 0);
+    }
+
     public void fromBytes(ByteArrayInputStream stream) {
         super.fromBytes(stream);
 
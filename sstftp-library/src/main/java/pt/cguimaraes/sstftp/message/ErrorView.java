@@ -0,0 +1,45 @@
+//=============================================================================
+// Brief     : TFTP Error Message View
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.message;
+
+import java.nio.ByteBuffer;
+
+public class ErrorView extends MessageView {
+
+    public boolean wrap(ByteBuffer buffer) {
+        return super.wrap(buffer) && length >= 4;
+    }
+
+    public int getErrorCode() {
+        return getUnsignedShort(2);
+    }
+
+    public String getErrorMsg() {
+        // Tolerate peers that do not terminate the message
+        parseStrings(4);
+        return getStringCount() > 0 ? getString(0) : "";
+    }
+}
@@ -0,0 +1,164 @@
+//=============================================================================
+// Brief     : TFTP Message View
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.message;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+// Flyweight over a received datagram. A view is wrapped around the receive
+// buffer and decodes fields on demand with absolute reads, so the packet is
+// never copied. Views are reused: wrap() resets them for the next packet and
+// they are only valid until the buffer is overwritten.
+public abstract class MessageView {
+
+    private final static Charset ASCII = Charset.forName("ISO-8859-1");
+
+    protected ByteBuffer buffer;
+    protected int offset;
+    protected int length;
+    protected InetSocketAddress source;
+
+    // Start and end offsets of the zero terminated strings of the packet
+    private int[] strings = new int[16];
+    private int nStrings;
+
+    // Point the view at the packet between position and limit of buffer.
+    // Returns false if the packet is malformed for this message type.
+    public boolean wrap(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.offset = buffer.position();
+        this.length = buffer.remaining();
+        this.nStrings = 0;
+
+        return length >= 2;
+    }
+
+    public int getOpcode() {
+        return buffer.getShort(offset) & 0xFFFF;
+    }
+
+    public InetSocketAddress getSource() {
+        return source;
+    }
+
+    public void setSource(InetSocketAddress source) {
+        this.source = source;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    protected int getUnsignedShort(int index) {
+        return buffer.getShort(offset + index) & 0xFFFF;
+    }
+
+    // Index every zero terminated string from index to the end of the packet
+    protected boolean parseStrings(int index) {
+        int end = offset + length;
+        int start = offset + index;
+
+        nStrings = 0;
+        for (int i = start; i < end; ++i) {
+            if (buffer.get(i) == 0) {
+                if (2 * nStrings + 2 > strings.length) {
+                    int[] tmp = new int[strings.length * 2];
+                    System.arraycopy(strings, 0, tmp, 0, strings.length);
+                    strings = tmp;
+                }
+
+                strings[2 * nStrings] = start;
+                strings[2 * nStrings + 1] = i;
+                ++nStrings;
+                start = i + 1;
+            }
+        }
+
+        // Every string must be terminated
+        return start == end;
+    }
+
+    protected int getStringCount() {
+        return nStrings;
+    }
+
+    protected String getString(int i) {
+        int start = strings[2 * i];
+        int len = strings[2 * i + 1] - start;
+
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + start, len, ASCII);
+        }
+
+        byte[] tmp = new byte[len];
+        for (int j = 0; j < len; ++j) {
+            tmp[j] = buffer.get(start + j);
+        }
+        return new String(tmp, ASCII);
+    }
+
+    // Compare string i with s ignoring ASCII case, without decoding it
+    protected boolean stringEquals(int i, String s) {
+        int start = strings[2 * i];
+        int len = strings[2 * i + 1] - start;
+        if (len != s.length()) {
+            return false;
+        }
+
+        for (int j = 0; j < len; ++j) {
+            int a = buffer.get(start + j);
+            int b = s.charAt(j);
+            if (a != b && Character.toLowerCase(a) != Character.toLowerCase(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Options are name/value string pairs starting at string first
+    protected String findOption(int first, String name) {
+        for (int i = first; i + 1 < nStrings; i += 2) {
+            if (stringEquals(i, name)) {
+                return getString(i + 1);
+            }
+        }
+        return null;
+    }
+
+    protected HashMap<String, String> collectOptions(int first) {
+        HashMap<String, String> options = new HashMap<String, String>();
+        for (int i = first; i + 1 < nStrings; i += 2) {
+            options.put(getString(i), getString(i + 1));
+        }
+        return options;
+    }
+}
@@ -28,6 +28,7 @@ package pt.cguimaraes.sstftp.message;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map.Entry;
 
@@ -46,6 +47,11 @@ public class OptionAcknowledgeMessage extends TFTPMessage {
         this.options = new HashMap<String, String>();
     }
 
+    public OptionAcknowledgeMessage(OptionAcknowledgeView view) {
+        super(view);
+        this.options = view.getOptions();
+    }
+
     public OptionAcknowledgeMessage(HashMap<String, String> options) {
         super();
         this.opcode = OACK;
@@ -67,6 +73,18 @@ public class OptionAcknowledgeMessage extends TFTPMessage {
         }
     }
 
+    public void toBuffer(ByteBuffer buffer) {
+        super.toBuffer(buffer);
+
+        for (Entry<String, String> entry : options.entrySet()) {
+            buffer.put(entry.getKey().getBytes());
+            buffer.put((byte) 0);
+
+            buffer.put(entry.getValue().getBytes());
+            buffer.put((byte) 0);
+        }
+    }
+
     public void fromBytes(ByteArrayInputStream stream) {
         super.fromBytes(stream);
 
@@ -28,6 +28,7 @@ package pt.cguimaraes.sstftp.message;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map.Entry;
 
@@ -48,6 +49,13 @@ public class ReadRequestMessage extends TFTPMessage {
         this.options = new HashMap<String, String>();
     }
 
+    public ReadRequestMessage(RequestView view) {
+        super(view);
+        this.fileName = view.getFileName();
+        this.mode = view.getMode();
+        this.options = view.getOptions();
+    }
+
     public ReadRequestMessage(String fileName, String mode) {
         super();
         this.opcode = RRQ;
@@ -85,6 +93,23 @@ public class ReadRequestMessage extends TFTPMessage {
         }
     }
 
+    public void toBuffer(ByteBuffer buffer) {
+        super.toBuffer(buffer);
+
+        buffer.put(fileName.getBytes());
+        buffer.put((byte) 0);
+        buffer.put(mode.getBytes());
+        buffer.put((byte) 0);
+
+        for (Entry<String, String> entry : options.entrySet()) {
+            buffer.put(entry.getKey().getBytes());
+            buffer.put((byte) 0);
+
+            buffer.put(entry.getValue().getBytes());
+            buffer.put((byte) 0);
+        }
+    }
+
     public void fromBytes(ByteArrayInputStream stream) {
         super.fromBytes(stream);
 
@@ -0,0 +1,62 @@
+//=============================================================================
+// Brief     : TFTP Request Message View
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.message;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+// View over RRQ and WRQ packets: filename, mode and options
+public class RequestView extends MessageView {
+
+    public boolean wrap(ByteBuffer buffer) {
+        return super.wrap(buffer) && parseStrings(2) && getStringCount() >= 2;
+    }
+
+    public String getFileName() {
+        return getString(0);
+    }
+
+    public String getMode() {
+        return getString(1);
+    }
+
+    public boolean isMode(String mode) {
+        return stringEquals(1, mode);
+    }
+
+    public int getOptionCount() {
+        return (getStringCount() - 2) / 2;
+    }
+
+    // Value of the option, or null if the request does not carry it
+    public String getOption(String name) {
+        return findOption(2, name);
+    }
+
+    public HashMap<String, String> getOptions() {
+        return collectOptions(2);
+    }
+}
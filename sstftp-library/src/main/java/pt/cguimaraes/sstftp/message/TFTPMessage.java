@@ -28,6 +28,7 @@ package pt.cguimaraes.sstftp.message;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 public abstract class TFTPMessage {
 
@@ -52,6 +53,16 @@ public abstract class TFTPMessage {
         this.port = port;
     }
 
+    // Decode the common header of a received packet
+    public TFTPMessage(MessageView view) {
+        this();
+        if (view.getSource() != null) {
+            this.ip = view.getSource().getAddress();
+            this.port = view.getSource().getPort();
+        }
+        this.opcode = view.getOpcode();
+    }
+
     public InetAddress getIp() {
         return ip;
     }
@@ -73,6 +84,10 @@ public abstract class TFTPMessage {
         stream.write((byte) (opcode & 0x00FF));
     }
 
+    public void toBuffer(ByteBuffer buffer) {
+        buffer.putShort((short) opcode);
+    }
+
     public void fromBytes(ByteArrayInputStream stream) {
         opcode = (stream.read() << 8) | stream.read();
     }
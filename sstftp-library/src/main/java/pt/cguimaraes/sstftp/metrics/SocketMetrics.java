@@ -0,0 +1,135 @@
+//=============================================================================
+// Brief     : TFTP Socket Metrics
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.metrics;
+
+// Traffic of the sockets sharing these metrics, updated by the sockets
+// themselves (see TFTPSocket.setMetrics())
+public class SocketMetrics {
+
+    // Error codes defined by RFC 1350 and RFC 2347, others counted last
+    public final static int ERROR_CODES = 9;
+
+    private Counter packetsSent = new Counter();
+    private Counter bytesSent = new Counter();
+    private Counter packetsReceived = new Counter();
+    private Counter bytesReceived = new Counter();
+    private Counter retransmits = new Counter();
+    private Counter timeouts = new Counter();
+    private Counter duplicates = new Counter();
+    private Counter[] errorsSent = counters(ERROR_CODES + 1);
+    private Counter[] errorsReceived = counters(ERROR_CODES + 1);
+
+    // Round-trip time samples (microseconds)
+    private Histogram rtt = new Histogram();
+
+    public void sent(int bytes) {
+        packetsSent.increment();
+        bytesSent.add(bytes);
+    }
+
+    public void received(int bytes) {
+        packetsReceived.increment();
+        bytesReceived.add(bytes);
+    }
+
+    public void retransmitted(int packets) {
+        retransmits.add(packets);
+    }
+
+    public void timedOut() {
+        timeouts.increment();
+    }
+
+    // Packet already received or acknowledge already seen
+    public void duplicate() {
+        duplicates.increment();
+    }
+
+    public void errorSent(int code) {
+        errorsSent[index(code)].increment();
+    }
+
+    public void errorReceived(int code) {
+        errorsReceived[index(code)].increment();
+    }
+
+    public void rtt(long micros) {
+        rtt.record(micros);
+    }
+
+    public long getPacketsSent() {
+        return packetsSent.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getPacketsReceived() {
+        return packetsReceived.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getRetransmits() {
+        return retransmits.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    // Errors by code, the last one counting undefined codes
+    public long getErrorsSent(int code) {
+        return errorsSent[index(code)].get();
+    }
+
+    public long getErrorsReceived(int code) {
+        return errorsReceived[index(code)].get();
+    }
+
+    public Histogram getRtt() {
+        return rtt;
+    }
+
+    private static int index(int code) {
+        return code >= 0 && code < ERROR_CODES ? code : ERROR_CODES;
+    }
+
+    private static Counter[] counters(int n) {
+        Counter[] counters = new Counter[n];
+        for (int i = 0; i < n; ++i) {
+            counters[i] = new Counter();
+        }
+        return counters;
+    }
+}
@@ -0,0 +1,106 @@
+//=============================================================================
+// Brief     : TFTP Buffer Pool
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.socket;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Pool of direct buffers grouped in power-of-two size classes, so packets
+// can be encoded straight into memory the channel sends from
+public class BufferPool {
+
+    // Smallest and largest pooled classes (512 bytes to 64 KiB)
+    private final static int MIN_SHIFT = 9;
+    private final static int MAX_SHIFT = 16;
+
+    public final static int DEFAULT_MAX_PER_CLASS = 1024;
+
+    private static BufferPool shared;
+
+    private ConcurrentLinkedQueue<ByteBuffer>[] classes;
+    private AtomicInteger[] pooled;
+    private int maxPerClass;
+
+    @SuppressWarnings("unchecked")
+    public BufferPool(int maxPerClass) {
+        this.maxPerClass = maxPerClass;
+        this.classes = new ConcurrentLinkedQueue[MAX_SHIFT - MIN_SHIFT + 1];
+        this.pooled = new AtomicInteger[classes.length];
+        for (int i = 0; i < classes.length; ++i) {
+            classes[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            pooled[i] = new AtomicInteger();
+        }
+    }
+
+    public static synchronized BufferPool shared() {
+        if (shared == null) {
+            shared = new BufferPool(DEFAULT_MAX_PER_CLASS);
+        }
+
+        return shared;
+    }
+
+    // Get a cleared buffer holding at least capacity bytes
+    public ByteBuffer acquire(int capacity) {
+        int index = classOf(capacity);
+        if (index < 0) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+
+        ByteBuffer buffer = classes[index].poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(1 << (index + MIN_SHIFT));
+        }
+
+        pooled[index].decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+
+        int index = classOf(buffer.capacity());
+        if (index < 0 || buffer.capacity() != 1 << (index + MIN_SHIFT)) {
+            return; // Not one of ours, let the GC have it
+        }
+
+        if (pooled[index].incrementAndGet() <= maxPerClass) {
+            classes[index].add(buffer);
+        } else {
+            pooled[index].decrementAndGet();
+        }
+    }
+
+    private static int classOf(int capacity) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1);
+        shift = Math.max(shift, MIN_SHIFT);
+        return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,164 @@
+//=============================================================================
+// Brief     : TFTP Event Loop
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.socket;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Single thread multiplexing many TFTP sockets through a selector.
+// Everything that touches a registered socket (handlers, timers and tasks
+// submitted with execute()) runs on this thread.
+public class EventLoop extends SocketExecutor implements Runnable {
+
+    private Selector selector;
+    private TimingWheel wheel;
+    private Thread thread;
+    private volatile boolean running;
+
+    // Datagrams of every socket of the loop are received here in turn
+    private Inbox inbox = new Inbox();
+
+    // Tasks submitted from other threads
+    private ConcurrentLinkedQueue<Runnable> tasks;
+
+    public EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<Runnable>();
+        this.wheel = new TimingWheel();
+        this.thread = new Thread(this, name);
+    }
+
+    public void start() {
+        running = true;
+        thread.start();
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public void join() throws InterruptedException {
+        thread.join();
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    // Retransmission deadlines of the sockets owned by this loop
+    public TimingWheel getTimingWheel() {
+        return wheel;
+    }
+
+    // Run a task on the event loop thread
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    public void schedule(TimingWheel.Timeout timeout, long delayMillis) {
+        wheel.schedule(timeout, delayMillis);
+        if (!inEventLoop()) {
+            // The loop may be waiting with no tick to wake it up
+            selector.wakeup();
+        }
+    }
+
+    public boolean cancel(TimingWheel.Timeout timeout) {
+        return wheel.cancel(timeout);
+    }
+
+    void attach(final TFTPSocket socket) throws IOException {
+        socket.getChannel().configureBlocking(false);
+        execute(new Runnable() {
+            public void run() {
+                try {
+                    socket.getChannel().register(selector, SelectionKey.OP_READ, socket);
+                } catch (ClosedChannelException e) {
+                    // Socket closed before it was registered
+                }
+            }
+        });
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                // Wake up every tick while retransmissions are pending
+                if (wheel.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.select(wheel.getTickMillis());
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+
+                if (key.isValid() && key.isReadable()) {
+                    ((TFTPSocket) key.attachment()).read(inbox);
+                }
+            }
+
+            wheel.advance();
+            runTasks();
+        }
+
+        // Release every socket still registered
+        for (SelectionKey key : selector.keys()) {
+            ((TFTPSocket) key.attachment()).close();
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+//=============================================================================
+// Brief     : TFTP Event Loop Group
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.socket;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Fixed set of event loops; sockets are spread among them round-robin
+public class EventLoopGroup {
+
+    private EventLoop[] loops;
+    private AtomicInteger next;
+
+    public EventLoopGroup(int nLoops, String name) throws IOException {
+        if (nLoops <= 0) {
+            nLoops = Runtime.getRuntime().availableProcessors();
+        }
+
+        this.loops = new EventLoop[nLoops];
+        this.next = new AtomicInteger();
+        for (int i = 0; i < nLoops; ++i) {
+            loops[i] = new EventLoop(name + "-" + i);
+            loops[i].start();
+        }
+    }
+
+    public EventLoop next() {
+        return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    // Loop at the given index, for callers spreading sockets themselves
+    public EventLoop get(int index) {
+        return loops[index];
+    }
+
+    public int size() {
+        return loops.length;
+    }
+
+    public void shutdown() {
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    public void awaitTermination() throws InterruptedException {
+        for (EventLoop loop : loops) {
+            loop.join();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+//=============================================================================
+// Brief     : TFTP Socket Receive Buffer
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.socket;
+
+import java.nio.ByteBuffer;
+
+import pt.cguimaraes.sstftp.message.AckView;
+import pt.cguimaraes.sstftp.message.DataView;
+import pt.cguimaraes.sstftp.message.ErrorView;
+import pt.cguimaraes.sstftp.message.OptionAcknowledgeView;
+import pt.cguimaraes.sstftp.message.RequestView;
+
+// Receive buffer and the views decoding it, shared by every socket read
+// from the same thread (an event loop, a socket thread or a blocking
+// run()). Sockets only hold their state between datagrams, so an idle
+// session costs no buffer at all. Handlers get views of this buffer: they
+// must copy whatever they keep beyond the call.
+final class Inbox {
+
+    private ByteBuffer buffer = ByteBuffer.allocate(TFTPSocket.MTU + 1);
+
+    final DataView data = new DataView();
+    final AckView ack = new AckView();
+    final ErrorView error = new ErrorView();
+    final RequestView request = new RequestView();
+    final OptionAcknowledgeView oack = new OptionAcknowledgeView();
+
+    // Cleared buffer for a datagram of up to size bytes. It grows with the
+    // largest block size negotiated on the thread and is limited to size,
+    // so a larger datagram fills it and is known to be truncated.
+    ByteBuffer buffer(int size) {
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(size);
+        }
+
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    // Buffer holding the last datagram received
+    ByteBuffer buffer() {
+        return buffer;
+    }
+}
@@ -0,0 +1,221 @@
+//=============================================================================
+// Brief     : TFTP Round-Trip Time Estimator
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.socket;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Retransmission timeout (RTO) computed from measured round-trip times, as
+// TCP does (Jacobson/Karels, RFC 6298). Callers must follow Karn's rule and
+// only sample packets that were never retransmitted. Sockets sample, back
+// off and configure it from different threads (handlers, timers, admission
+// of a session), so every method holds a lock. It is a ReentrantLock rather
+// than a monitor so a virtual thread waiting for it is not pinned to its
+// carrier, and a socket shares its own lock with its estimator.
+public class RttEstimator {
+
+    // Default bounds for the retransmission timeout (ms)
+    public final static int DEFAULT_MIN_TIMEOUT = 20;
+    public final static int DEFAULT_MAX_TIMEOUT = 60000;
+
+    // Smoothed round-trip time scaled by 8 and its mean deviation scaled
+    // by 4, so the gains of 1/8 and 1/4 are plain shifts
+    private int srtt;
+    private int rttvar;
+
+    // Current retransmission timeout (ms)
+    private int rto;
+    private int minRto = DEFAULT_MIN_TIMEOUT;
+    private int maxRto = DEFAULT_MAX_TIMEOUT;
+
+    // A fixed timeout is neither estimated nor backed off (RFC 2349)
+    private boolean adaptive = true;
+
+    private Lock lock;
+
+    public RttEstimator(int initialTimeout) {
+        this(initialTimeout, new ReentrantLock());
+    }
+
+    // Estimator guarded by the given lock, e.g. the one of its owner
+    public RttEstimator(int initialTimeout, Lock lock) {
+        this.lock = lock;
+        reset(initialTimeout);
+    }
+
+    // Forget every sample and start over from the given timeout
+    public void reset(int initialTimeout) {
+        lock.lock();
+        try {
+            srtt = 0;
+            rttvar = 0;
+            rto = adaptive ? clamp(initialTimeout) : initialTimeout;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Update the estimation with a round-trip time measure (ms)
+    public void sample(int rtt) {
+        lock.lock();
+        try {
+            if (!adaptive) {
+                return;
+            }
+
+            if (rtt < 1) {
+                rtt = 1;
+            }
+
+            if (srtt == 0) {
+                // First measure: SRTT = R, RTTVAR = R / 2
+                srtt = rtt << 3;
+                rttvar = rtt << 1;
+            } else {
+                // SRTT += (R - SRTT) / 8, RTTVAR += (|R - SRTT| - RTTVAR) / 4
+                int delta = rtt - (srtt >> 3);
+                srtt += delta;
+                if (delta < 0) {
+                    delta = -delta;
+                }
+                rttvar += delta - (rttvar >> 2);
+            }
+
+            // RTO = SRTT + 4 * RTTVAR
+            rto = clamp((srtt >> 3) + rttvar);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Double the timeout after a retransmission. It stays backed off until
+    // a packet is acknowledged without being retransmitted.
+    public void backoff() {
+        lock.lock();
+        try {
+            if (adaptive) {
+                rto = clamp(rto << 1);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Timeout for the next retransmission timer. Adaptive timeouts get up
+    // to 25% of random jitter, so sessions that lost packets at the same
+    // time do not retransmit in lockstep.
+    public int nextTimeout() {
+        lock.lock();
+        try {
+            if (!adaptive) {
+                return rto;
+            }
+
+            return clamp(rto + ThreadLocalRandom.current().nextInt((rto >> 2) + 1));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getTimeout() {
+        lock.lock();
+        try {
+            return rto;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Smoothed round-trip time (ms), or -1 when nothing was measured yet
+    public int getSmoothedRtt() {
+        lock.lock();
+        try {
+            return srtt == 0 ? -1 : srtt >> 3;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setBounds(int minTimeout, int maxTimeout) {
+        lock.lock();
+        try {
+            if (minTimeout <= 0 || maxTimeout < minTimeout) {
+                throw new IllegalArgumentException("Invalid timeout bounds");
+            }
+
+            this.minRto = minTimeout;
+            this.maxRto = maxTimeout;
+            this.rto = clamp(rto);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMinTimeout() {
+        lock.lock();
+        try {
+            return minRto;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxTimeout() {
+        lock.lock();
+        try {
+            return maxRto;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isAdaptive() {
+        lock.lock();
+        try {
+            return adaptive;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setAdaptive(boolean adaptive) {
+        lock.lock();
+        try {
+            this.adaptive = adaptive;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int clamp(int timeout) {
+        // Shifting may overflow on very large timeouts
+        if (timeout < 0 || timeout > maxRto) {
+            return maxRto;
+        }
+        return timeout < minRto ? minRto : timeout;
+    }
+}
@@ -0,0 +1,46 @@
+//=============================================================================
+// Brief     : TFTP Socket Executor
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.socket;
+
+import java.io.IOException;
+
+// Runs registered sockets: their handlers, their timeouts and the tasks
+// handed to execute(), never two at once for the same socket. An EventLoop
+// multiplexes many sockets on one thread; a SocketThread gives one socket
+// threads of its own.
+public abstract class SocketExecutor {
+
+    // Run a task along with the handlers of the sockets
+    public abstract void execute(Runnable task);
+
+    // Fire a timeout after the delay, along with the handlers of the sockets
+    public abstract void schedule(TimingWheel.Timeout timeout, long delayMillis);
+
+    public abstract boolean cancel(TimingWheel.Timeout timeout);
+
+    // Start reading from a socket (see TFTPSocket.register())
+    abstract void attach(TFTPSocket socket) throws IOException;
+}
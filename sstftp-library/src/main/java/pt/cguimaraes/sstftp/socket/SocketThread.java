@@ -0,0 +1,148 @@
+//=============================================================================
+// Brief     : TFTP Socket Thread
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.socket;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Threads of its own for a single socket, typically virtual threads: one
+// blocks reading the socket, the other parks until the next timeout or task.
+// They take turns under a lock, so handlers, timeouts and tasks never run
+// concurrently, just as on an event loop. With virtual threads, blocking
+// and parking only unmount them from their carrier, so tens of thousands
+// of sockets cost a few kilobytes each instead of two stacks.
+public class SocketThread extends SocketExecutor {
+
+    // A socket has a retransmission timeout and maybe a pacing one: a small
+    // wheel is enough (one revolution ~ 640 ms)
+    private final static int WHEEL_SLOTS = 64;
+
+    private ThreadFactory factory;
+    private TimingWheel wheel = new TimingWheel(TimingWheel.DEFAULT_TICK, WHEEL_SLOTS);
+    private ReentrantLock lock = new ReentrantLock();
+
+    // Tasks submitted from other threads
+    private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    private volatile Thread timer;
+    private volatile boolean running;
+
+    // Threads are taken from factory (e.g. Thread.ofVirtual().factory())
+    public SocketThread(ThreadFactory factory) {
+        this.factory = factory;
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        LockSupport.unpark(timer);
+    }
+
+    public void schedule(TimingWheel.Timeout timeout, long delayMillis) {
+        wheel.schedule(timeout, delayMillis);
+        LockSupport.unpark(timer);
+    }
+
+    public boolean cancel(TimingWheel.Timeout timeout) {
+        return wheel.cancel(timeout);
+    }
+
+    // Only one socket per thread: start reading it and firing its timeouts
+    void attach(final TFTPSocket socket) throws IOException {
+        if (timer != null) {
+            throw new IllegalStateException("Socket thread already in use");
+        }
+
+        socket.getChannel().configureBlocking(true);
+        running = true;
+        timer = factory.newThread(new Runnable() {
+            public void run() {
+                runTimer();
+            }
+        });
+        Thread reader = factory.newThread(new Runnable() {
+            public void run() {
+                runReader(socket);
+            }
+        });
+        timer.start();
+        reader.start();
+    }
+
+    private void runReader(TFTPSocket socket) {
+        Inbox inbox = new Inbox();
+        InetSocketAddress source;
+        while ((source = socket.receive(inbox)) != null) {
+            lock.lock();
+            try {
+                socket.dispatch(inbox, source);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Socket closed: pending tasks and timeouts are dropped
+        running = false;
+        LockSupport.unpark(timer);
+    }
+
+    private void runTimer() {
+        while (running) {
+            lock.lock();
+            try {
+                wheel.advance();
+                runTasks();
+            } finally {
+                lock.unlock();
+            }
+
+            // Whatever is scheduled or submitted from now on unparks us
+            long wait = wheel.nanosToNextExpiry();
+            if (!running || !tasks.isEmpty()) {
+                continue;
+            }
+            if (wait < 0) {
+                LockSupport.park(this);
+            } else if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
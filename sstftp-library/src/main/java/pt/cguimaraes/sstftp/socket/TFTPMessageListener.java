@@ -0,0 +1,53 @@
+//=============================================================================
+// Brief     : TFTP Message Listener
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.socket;
+
+import pt.cguimaraes.sstftp.message.AckView;
+import pt.cguimaraes.sstftp.message.DataView;
+import pt.cguimaraes.sstftp.message.ErrorView;
+import pt.cguimaraes.sstftp.message.OptionAcknowledgeView;
+import pt.cguimaraes.sstftp.message.RequestView;
+
+// Receives the packets read by a TFTPSocket, one callback per opcode.
+// Views point into the socket receive buffer and are only valid during the
+// call; convert them to TFTPMessage objects to keep them.
+public interface TFTPMessageListener {
+
+    // RRQ or WRQ (see RequestView.getOpcode())
+    void onRequest(RequestView request);
+
+    void onData(DataView data);
+
+    void onAck(AckView ack);
+
+    void onError(ErrorView error);
+
+    void onOack(OptionAcknowledgeView oack);
+
+    // The pending packet was retransmitted the maximum number of times
+    // without an answer
+    void onTimeout();
+}
@@ -25,49 +25,103 @@
 
 package pt.cguimaraes.sstftp.socket;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.Inet4Address;
 import java.net.InetSocketAddress;
-import java.net.SocketException;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.net.NetworkInterface;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.locks.ReentrantLock;
 
 import pt.cguimaraes.sstftp.message.AcknowledgeMessage;
 import pt.cguimaraes.sstftp.message.DataMessage;
 import pt.cguimaraes.sstftp.message.ErrorMessage;
-import pt.cguimaraes.sstftp.message.OptionAcknowledgeMessage;
-import pt.cguimaraes.sstftp.message.ReadRequestMessage;
 import pt.cguimaraes.sstftp.message.TFTPMessage;
-import pt.cguimaraes.sstftp.message.WriteRequestMessage;
+import pt.cguimaraes.sstftp.metrics.SocketMetrics;
 
 public class TFTPSocket implements Runnable {
 
     // Use default MTU of 1500
     final static int MTU = 1500;
 
+    // Block sizes allowed by RFC 2348
+    public final static int DEFAULT_BLOCK_SIZE = 512;
+    public final static int MIN_BLOCK_SIZE = 8;
+    public final static int MAX_BLOCK_SIZE = 65464;
+
+    // Opcode and block number
+    public final static int DATA_HEADER = 4;
+
+    // Room for the usual control packets (acknowledges, options, errors)
+    private final static int CONTROL_SIZE = 512;
+
     // Maximum retries
     private int retries = 3;
 
-    // Socket timeout
-    private int timeout = 2000;
+    // Guards sending and the send window. Blocking sends happen under it,
+    // so it is not a monitor: a virtual thread (thread per session) waiting
+    // on it or sending would stay pinned to its carrier.
+    private ReentrantLock lock = new ReentrantLock();
+
+    // Retransmission timeout, adapted to the measured round-trip time,
+    // guarded by the lock of the socket too
+    private RttEstimator rtt = new RttEstimator(2000, lock);
 
     // Socket variables
-    private DatagramSocket socket;
-    private DatagramPacket socketPacket;
-    private boolean running;
+    private DatagramChannel channel;
+    private InetSocketAddress remote;
+
+    // Largest datagram accepted, plus a byte to detect truncated ones. They
+    // are received into the buffer of the thread reading the socket.
+    private int recvSize = MTU + 1;
+
+    // Last control packet sent, kept encoded for retransmissions until data
+    // blocks follow. Only its bytes are kept, it is sent from a pooled
+    // buffer. It is sent holding the lock.
+    private byte[] control;
+    private volatile boolean running;
+
+    // Data blocks sent and not acknowledged yet (RFC 7440 window), kept
+    // encoded in a ring of pooled buffers for go-back retransmissions
+    private ByteBuffer[] window;
+    private int windowSize = 1;
+    private int windowHead;
+    private int inFlight;
+    private int firstBlock;
+    private int packetSize = MTU;
+
+    // Multicast transfer (RFC 2090): data blocks go to the group (or to the
+    // master client when null) and every client may acknowledge
+    private boolean multicast;
+    private InetSocketAddress group;
+
+    // Event loop or thread driving this socket (null when running its own
+    // blocking loop)
+    private SocketExecutor executor;
 
     // External handler
-    private Object externalClass;
-    private Method externalHandler;
+    private TFTPMessageListener listener;
+
+    // Traffic counters shared with other sockets (null if not measured)
+    private SocketMetrics metrics;
 
-    // There is only one message pending, so it is fine to set a single timer
-    private Timer timer;
+    // A single timer covers either the pending control packet or the oldest
+    // block of the window
+    private Retransmission timer = new Retransmission();
+
+    // Send time of the packet being timed (0 when none). Only one packet is
+    // timed at a time, either a data block or the control packet.
+    private long timedAt;
+    private int timedBlock;
+    private boolean timedData;
 
     // Last block received
     private int lastBlock;
@@ -75,29 +129,68 @@ public class TFTPSocket implements Runnable {
     // Last acknowledge received
     private int lastAck;
 
-    public TFTPSocket(Object externalClass, Method externalHandler) throws SocketException {
-        this.socket = new DatagramSocket(null);
+    public TFTPSocket(TFTPMessageListener listener) throws IOException {
+        this.channel = DatagramChannel.open();
+
+        this.listener = listener;
+    }
+
+    public TFTPSocket(InetAddress ipAddress, int port, TFTPMessageListener listener) throws IOException {
+        this(new InetSocketAddress(ipAddress, port), listener);
+    }
 
-        byte[] socketData = new byte[MTU];
-        this.socketPacket = new DatagramPacket(socketData, socketData.length);
+    public TFTPSocket(InetSocketAddress remote, TFTPMessageListener listener) throws IOException {
+        this.channel = DatagramChannel.open();
+        this.channel.bind(null);
+        this.remote = remote;
 
-        this.externalClass = externalClass;
-        this.externalHandler = externalHandler;
+        this.listener = listener;
     }
 
-    public TFTPSocket(InetAddress ipAddress, int port, Object externalClass, Method externalHandler)
-            throws SocketException {
-        this.socket = new DatagramSocket();
+    // Receive the data blocks of a multicast transfer (RFC 2090) sent to the
+    // group. Several clients on the same host may listen to the same group.
+    public TFTPSocket(InetSocketAddress group, NetworkInterface ni, TFTPMessageListener listener)
+            throws IOException {
+        ProtocolFamily family = group.getAddress() instanceof Inet4Address ? StandardProtocolFamily.INET
+                : StandardProtocolFamily.INET6;
+        this.channel = DatagramChannel.open(family);
+        this.channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        this.channel.bind(new InetSocketAddress(group.getPort()));
+        if (ni == null) {
+            ni = interfaceTowards(group.getAddress());
+        }
+        if (ni == null) {
+            throw new IOException("No interface to join multicast group " + group);
+        }
+        this.channel.join(group.getAddress(), ni);
 
-        byte[] socketData = new byte[MTU];
-        this.socketPacket = new DatagramPacket(socketData, socketData.length, ipAddress, port);
+        this.listener = listener;
+    }
 
-        this.externalClass = externalClass;
-        this.externalHandler = externalHandler;
+    public void bind(InetAddress ipAddress, int port) throws IOException {
+        channel.bind(new InetSocketAddress(ipAddress, port));
     }
 
-    public void bind(InetAddress ipAddress, int port) throws SocketException {
-        socket.bind(new InetSocketAddress(ipAddress, port));
+    // Let other sockets bind the same port, the kernel spreading datagrams
+    // among them by source (SO_REUSEPORT, must be set before bind). The option
+    // is only known by name, false if this platform does not have it.
+    @SuppressWarnings("unchecked")
+    public boolean setReusePort(boolean on) throws IOException {
+        for (SocketOption<?> option : channel.supportedOptions()) {
+            if (option.name().equals("SO_REUSEPORT")) {
+                channel.setOption((SocketOption<Boolean>) option, on);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Hand this socket over to an event loop or a thread of its own instead
+    // of calling run()
+    public void register(SocketExecutor executor) throws IOException {
+        running = true;
+        this.executor = executor;
+        executor.attach(this);
     }
 
     public void send(TFTPMessage msg) {
@@ -108,18 +201,21 @@ public class TFTPSocket implements Runnable {
         switch (msg.getOpcode()) {
             case TFTPMessage.DATA: {
                 DataMessage msgData = (DataMessage) msg;
-                lastBlock = msgData.getBlockNumber();
-                break;
+                sendData(msgData.getBlockNumber(), msgData.getData(), 0, msgData.getData().length);
+                return;
             }
 
             case TFTPMessage.ACK: {
                 AcknowledgeMessage msgAck = (AcknowledgeMessage) msg;
-                lastAck = msgAck.getBlockNumber();
+                lastAck = msgAck.getBlockNumber() & 0xFFFF;
                 break;
             }
 
             case TFTPMessage.ERROR: {
                 enableRetransmission = false;
+                if (metrics != null) {
+                    metrics.errorSent(((ErrorMessage) msg).getErrorCode());
+                }
                 break;
             }
 
@@ -129,140 +225,606 @@ public class TFTPSocket implements Runnable {
             }
         }
 
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        msg.toBytes(stream);
-
-        socketPacket.setData(stream.toByteArray());
+        lock.lock();
         try {
-            socket.send(socketPacket);
-        } catch (IOException e) {
-            e.printStackTrace();
+            if (!isOpen()) {
+                return;
+            }
+
+            ByteBuffer packet = BufferPool.shared().acquire(CONTROL_SIZE);
+            try {
+                msg.toBuffer(packet);
+            } catch (BufferOverflowException e) {
+                // Unusually long: take a buffer as large as a data block
+                BufferPool.shared().release(packet);
+                packet = BufferPool.shared().acquire(packetSize);
+                msg.toBuffer(packet);
+            }
+            packet.flip();
+            control = new byte[packet.remaining()];
+            packet.get(0, control);
+
+            transmit(packet, remote);
+            BufferPool.shared().release(packet);
+            startTiming();
+        } finally {
+            lock.unlock();
         }
 
         // Start timer for retransmissions
         if (enableRetransmission == true) {
-            this.timer = new Timer();
-            this.timer.schedule(new TimerTask() {
-                int i = 0;
-
-                public void run() {
-                    if (i < retries) {
-                        ++i;
-                        try {
-                            socket.send(socketPacket);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
+            timer.start(false);
+        } else {
+            stopTimer(timer);
+        }
+    }
+
+    // Send a data block without building a DataMessage: the header and the
+    // payload are written straight into a pooled buffer of the window.
+    // Callers must not exceed the window (see isWindowFull()).
+    public void sendData(int blockNumber, byte[] data, int offset, int length) {
+        lock.lock();
+        try {
+            ByteBuffer slot = openSlot(blockNumber);
+            if (slot == null) {
+                return;
+            }
+
+            slot.put(data, offset, length);
+            sendSlot(slot);
+        } finally {
+            lock.unlock();
+        }
+
+        // The timer follows the oldest block of the window
+        if (inFlight == 1) {
+            timer.start(true);
+        }
+    }
+
+    // Send the remaining bytes of a buffer as a data block, e.g. a slice of
+    // a file mapped in memory. They are copied once, into the window.
+    public void sendData(int blockNumber, ByteBuffer data) {
+        lock.lock();
+        try {
+            ByteBuffer slot = openSlot(blockNumber);
+            if (slot == null) {
+                return;
+            }
+
+            slot.put(data);
+            sendSlot(slot);
+        } finally {
+            lock.unlock();
+        }
+
+        // The timer follows the oldest block of the window
+        if (inFlight == 1) {
+            timer.start(true);
+        }
+    }
+
+    // Next free buffer of the window, with the data header already written,
+    // or null if the socket is closed. Must be called holding the lock.
+    private ByteBuffer openSlot(int blockNumber) {
+        if (!isOpen()) {
+            return null;
+        }
+
+        if (isWindowFull()) {
+            throw new IllegalStateException("Send window is full");
+        }
+
+        if (inFlight == 0) {
+            firstBlock = blockNumber & 0xFFFF;
+
+            // Data blocks answer the control packet, so it will not be sent
+            // again (the timer follows them from now on)
+            control = null;
+        }
+        lastBlock = blockNumber & 0xFFFF;
+
+        // Time one block of the window at a time
+        if (timedAt == 0) {
+            timedAt = System.nanoTime();
+            timedBlock = blockNumber & 0xFFFF;
+            timedData = true;
+        }
+
+        ByteBuffer slot = windowSlot(inFlight);
+        slot.clear();
+        slot.putShort((short) TFTPMessage.DATA);
+        slot.putShort((short) blockNumber);
+        return slot;
+    }
+
+    // Must be called holding the lock
+    private void sendSlot(ByteBuffer slot) {
+        slot.flip();
+        ++inFlight;
+
+        transmit(slot, dataTarget());
+    }
+
+    public boolean isWindowFull() {
+        return inFlight >= windowSize;
+    }
+
+    // Number of data blocks sent and not acknowledged yet
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    // Buffer i of the window, counting from the oldest block in flight
+    private ByteBuffer windowSlot(int i) {
+        if (window == null) {
+            window = new ByteBuffer[windowSize];
+        }
+
+        int index = (windowHead + i) % window.length;
+        if (window[index] == null) {
+            window[index] = BufferPool.shared().acquire(packetSize);
+        }
+        return window[index];
+    }
+
+    // Slide the window up to the acknowledged block. An acknowledge that
+    // leaves blocks in flight means the receiver lost the next one, so the
+    // rest of the window is sent again (go back). Stale and duplicate
+    // acknowledges do not cover any block in flight and are ignored.
+    private int acknowledge(int blockNumber) {
+        int acked;
+        lock.lock();
+        try {
+            acked = ((blockNumber - firstBlock) & 0xFFFF) + 1;
+            if (inFlight == 0 || acked > inFlight) {
+                return 0;
+            }
+
+            // Sample the round-trip time if the timed block is covered
+            if (timedAt != 0 && timedData && ((timedBlock - firstBlock) & 0xFFFF) < acked) {
+                sampleRtt();
+            }
+
+            windowHead = (windowHead + acked) % window.length;
+            inFlight -= acked;
+            firstBlock = (blockNumber + 1) & 0xFFFF;
+
+            // Karn's rule: blocks sent again cannot be timed
+            if (inFlight > 0) {
+                timedAt = 0;
+                if (metrics != null) {
+                    metrics.retransmitted(inFlight);
                 }
-            }, timeout, timeout);
+            }
+            for (int i = 0; i < inFlight; ++i) {
+                transmit(windowSlot(i), dataTarget());
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (inFlight == 0) {
+            stopTimer(timer);
+        } else {
+            timer.start(true);
+        }
+        return acked;
+    }
+
+    // Acknowledge a data block without building an AcknowledgeMessage
+    public void sendAck(int blockNumber) {
+        lock.lock();
+        try {
+            if (!isOpen()) {
+                return;
+            }
+
+            lastAck = blockNumber & 0xFFFF;
+
+            if (control == null || control.length != 4) {
+                control = new byte[4];
+            }
+            control[0] = (byte) (TFTPMessage.ACK >> 8);
+            control[1] = (byte) TFTPMessage.ACK;
+            control[2] = (byte) (blockNumber >> 8);
+            control[3] = (byte) blockNumber;
+            transmitControl();
+            startTiming();
+        } finally {
+            lock.unlock();
         }
+
+        timer.start(false);
+    }
+
+    // Send the control packet from a pooled buffer. Must be called holding
+    // the lock.
+    private void transmitControl() {
+        ByteBuffer packet = BufferPool.shared().acquire(control.length);
+        packet.put(control);
+        packet.flip();
+        transmit(packet, remote);
+        BufferPool.shared().release(packet);
+    }
+
+    // Send a control packet to a peer other than the remote, without
+    // retransmissions (e.g. an OACK to a multicast client that is not the
+    // master client)
+    public void sendTo(TFTPMessage msg, InetSocketAddress target) {
+        ByteBuffer buffer = BufferPool.shared().acquire(packetSize);
+        lock.lock();
+        try {
+            if (isOpen()) {
+                msg.toBuffer(buffer);
+                buffer.flip();
+                transmit(buffer, target);
+            }
+        } finally {
+            lock.unlock();
+        }
+        BufferPool.shared().release(buffer);
+    }
+
+    // Must be called holding the lock
+    private void transmit(ByteBuffer packet, InetSocketAddress target) {
+        try {
+            int n = channel.send(packet, target);
+            if (metrics != null) {
+                metrics.sent(n);
+            }
+        } catch (ClosedChannelException e) {
+            // Socket closed while a retransmission was pending
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        // Keep the packet for a later retransmission
+        packet.rewind();
     }
 
     // Start TFTP socket
     public void run() {
-        byte[] recvData = new byte[MTU];
-        DatagramPacket recvPacket = new DatagramPacket(recvData, recvData.length);
-
         running = true;
+        Inbox inbox = new Inbox();
+        InetSocketAddress source;
+        while ((source = receive(inbox)) != null) {
+            dispatch(inbox, source);
+        }
+    }
+
+    // Wait for the next datagram (blocking mode), null once closed
+    InetSocketAddress receive(Inbox inbox) {
+        if (!running) {
+            return null;
+        }
+
+        try {
+            return (InetSocketAddress) channel.receive(inbox.buffer(recvSize));
+        } catch (ClosedChannelException e) {
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // Drain every datagram queued on the channel (called by the event loop)
+    void read(Inbox inbox) {
         while (running) {
+            SocketAddress source;
             try {
-                socket.receive(recvPacket);
-                socketPacket.setPort(recvPacket.getPort());
-            } catch (SocketException e) {
-                e.printStackTrace();
-                break;
+                source = channel.receive(inbox.buffer(recvSize));
+            } catch (ClosedChannelException e) {
+                return;
             } catch (IOException e) {
                 e.printStackTrace();
+                return;
+            }
+
+            if (source == null) {
+                return;
+            }
+
+            dispatch(inbox, (InetSocketAddress) source);
+        }
+    }
+
+    void dispatch(Inbox inbox, InetSocketAddress source) {
+        // The buffer has one spare byte: a datagram filling it was truncated
+        ByteBuffer recvBuffer = inbox.buffer();
+        if (!recvBuffer.hasRemaining()) {
+            return;
+        }
+
+        recvBuffer.flip();
+        if (metrics != null) {
+            metrics.received(recvBuffer.remaining());
+        }
+        if (recvBuffer.remaining() < 2) {
+            return;
+        }
+
+        // Replies come from the peer transfer identifier
+        if (!multicast && remote != null && remote.getPort() != source.getPort()) {
+            remote = new InetSocketAddress(remote.getAddress(), source.getPort());
+        }
+
+        int opcode = recvBuffer.getShort(0) & 0xFFFF;
+        switch (opcode) {
+            case TFTPMessage.RRQ:
+            case TFTPMessage.WRQ: {
+                if (inbox.request.wrap(recvBuffer)) {
+                    inbox.request.setSource(source);
+                    listener.onRequest(inbox.request);
+                }
                 break;
             }
 
-            TFTPMessage msg = null;
-            int opcode = (recvPacket.getData()[0] | recvPacket.getData()[1]);
-            switch (opcode) {
-                case TFTPMessage.RRQ: {
-                    ReadRequestMessage msgRRQ = new ReadRequestMessage(recvPacket.getAddress(), recvPacket.getPort());
-                    msgRRQ.fromBytes(new ByteArrayInputStream(recvPacket.getData(), 0,
-                            recvPacket.getLength()));
-                    msg = msgRRQ;
-                    break;
+            case TFTPMessage.DATA: {
+                if (!inbox.data.wrap(recvBuffer)) {
+                    return;
                 }
+                inbox.data.setSource(source);
 
-                case TFTPMessage.WRQ: {
-                    WriteRequestMessage msgWRQ = new WriteRequestMessage(recvPacket.getAddress(), recvPacket.getPort());
-                    msgWRQ.fromBytes(new ByteArrayInputStream(recvPacket.getData(), 0,
-                            recvPacket.getLength()));
-                    msg = msgWRQ;
-                    break;
+                // If next data block was received cancel timer
+                if (((lastAck + 1) & 0xFFFF) == inbox.data.getBlockNumber()) {
+                    stopTimer(timer);
+                    sampleControl();
                 }
 
-                case TFTPMessage.DATA: {
-                    DataMessage msgData = new DataMessage(recvPacket.getAddress(), recvPacket.getPort());
-                    msgData.fromBytes(new ByteArrayInputStream(recvPacket.getData(), 0,
-                            recvPacket.getLength()));
-                    msg = msgData;
+                listener.onData(inbox.data);
+                break;
+            }
 
-                    // If next data block was received cancel timer
-                    if (lastAck + 1 == msgData.getBlockNumber()) {
-                        stopTimer(timer);
+            case TFTPMessage.ACK: {
+                if (!inbox.ack.wrap(recvBuffer)) {
+                    return;
+                }
+                inbox.ack.setSource(source);
+
+                // Multicast transfer: only the master client (the remote)
+                // slides the window, but it may ask for any block, so every
+                // acknowledge goes to the listener
+                if (multicast) {
+                    if (source.equals(remote)) {
+                        if (inFlight > 0) {
+                            acknowledge(inbox.ack.getBlockNumber());
+                        } else {
+                            stopTimer(timer);
+                            sampleControl();
+                        }
                     }
+
+                    listener.onAck(inbox.ack);
                     break;
                 }
 
-                case TFTPMessage.ACK: {
-                    AcknowledgeMessage msgAck = new AcknowledgeMessage(recvPacket.getAddress(), recvPacket.getPort());
-                    msgAck.fromBytes(new ByteArrayInputStream(recvPacket.getData(), 0,
-                            recvPacket.getLength()));
-                    msg = msgAck;
-
-                    // If acknowledge to the current data block was received cancel timer
-                    if (lastBlock == msgAck.getBlockNumber()) {
-                        stopTimer(timer);
+                // Slide the window, or cancel the timer of the control
+                // packet this acknowledges (e.g. an OACK). Stale and
+                // duplicate acknowledges are dropped here, so listeners
+                // never answer them with data again (Sorcerer's Apprentice)
+                if (inFlight > 0) {
+                    if (acknowledge(inbox.ack.getBlockNumber()) == 0) {
+                        duplicate();
+                        return;
                     }
-                    break;
+                } else if (lastBlock == inbox.ack.getBlockNumber()) {
+                    stopTimer(timer);
+                    sampleControl();
+                } else {
+                    duplicate();
+                    return;
                 }
 
-                case TFTPMessage.ERROR: {
+                listener.onAck(inbox.ack);
+                break;
+            }
+
+            case TFTPMessage.ERROR: {
+                if (!multicast || source.equals(remote)) {
                     stopTimer(timer);
+                }
 
-                    ErrorMessage msgError = new ErrorMessage(recvPacket.getAddress(), recvPacket.getPort());
-                    msgError.fromBytes(new ByteArrayInputStream(recvPacket.getData(), 0,
-                            recvPacket.getLength()));
-                    msg = msgError;
-                    break;
+                if (inbox.error.wrap(recvBuffer)) {
+                    inbox.error.setSource(source);
+                    if (metrics != null) {
+                        metrics.errorReceived(inbox.error.getErrorCode());
+                    }
+                    listener.onError(inbox.error);
                 }
+                break;
+            }
 
-                case TFTPMessage.OACK: {
-                    stopTimer(timer);
+            case TFTPMessage.OACK: {
+                stopTimer(timer);
+                sampleControl();
 
-                    OptionAcknowledgeMessage msgOAck = new OptionAcknowledgeMessage(
-                            recvPacket.getAddress(), recvPacket.getPort());
-                    msgOAck.fromBytes(new ByteArrayInputStream(recvPacket.getData(), 0,
-                            recvPacket.getLength()));
-                    msg = msgOAck;
-                    break;
+                if (inbox.oack.wrap(recvBuffer)) {
+                    inbox.oack.setSource(source);
+                    listener.onOack(inbox.oack);
                 }
+                break;
+            }
 
-                default: {
-                    return;
-                }
+            default: {
+                // Unknown opcode: drop the datagram
+                break;
             }
+        }
+    }
 
-            // Send message to external handler
+    public void close() {
+        stopTimer(timer);
+
+        running = false;
+        lock.lock();
+        try {
             try {
-                externalHandler.invoke(externalClass, msg);
-            } catch (IllegalAccessException | IllegalArgumentException
-                    | InvocationTargetException e) {
+                channel.close();
+            } catch (IOException e) {
                 e.printStackTrace();
             }
+
+            control = null;
+            releaseWindow();
+        } finally {
+            lock.unlock();
         }
     }
 
-    public void close() {
+    public int getLocalPort() {
+        try {
+            return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    // Count the traffic of this socket in metrics (null to stop)
+    public void setMetrics(SocketMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // Size the buffers for the negotiated block size. Buffers only grow, so
+    // sessions using the default block size keep MTU sized buffers.
+    public void setBlockSize(int blockSize) throws IOException {
+        int packetSize = blockSize + DATA_HEADER;
+        if (packetSize < MTU) {
+            return;
+        }
+
+        recvSize = Math.max(recvSize, packetSize + 1);
+
+        lock.lock();
+        try {
+            if (inFlight == 0 && this.packetSize < packetSize) {
+                releaseWindow();
+                this.packetSize = packetSize;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        reserveSocketBuffers();
+    }
+
+    // Number of blocks that may be sent without waiting for an acknowledge
+    public void setWindowSize(int windowSize) throws IOException {
+        lock.lock();
+        try {
+            if (inFlight > 0) {
+                throw new IllegalStateException("Window size changed during a transfer");
+            }
+
+            releaseWindow();
+            this.windowSize = windowSize;
+        } finally {
+            lock.unlock();
+        }
+
+        reserveSocketBuffers();
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    // Make room in the kernel for a whole window (and a few blocks at least)
+    private void reserveSocketBuffers() throws IOException {
+        int socketBuffer = Math.max(4, windowSize + 1) * packetSize;
+        if (channel.getOption(StandardSocketOptions.SO_RCVBUF) < socketBuffer) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, socketBuffer);
+        }
+        if (channel.getOption(StandardSocketOptions.SO_SNDBUF) < socketBuffer) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, socketBuffer);
+        }
+    }
+
+    // Drop the blocks in flight, e.g. when a new master client of a multicast
+    // transfer asks for an older block
+    public void rewind() {
         stopTimer(timer);
+        lock.lock();
+        try {
+            windowHead = 0;
+            inFlight = 0;
+            timedAt = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        socket.close();
-        running = false;
+    // The packet waiting for an answer was answered through another socket
+    // (e.g. data of a multicast transfer)
+    public void stopRetransmission() {
+        stopTimer(timer);
+    }
+
+    // Must be called holding the lock
+    private void releaseWindow() {
+        if (window != null) {
+            for (ByteBuffer slot : window) {
+                BufferPool.shared().release(slot);
+            }
+            window = null;
+        }
+        windowHead = 0;
+        inFlight = 0;
+    }
+
+    // Send data blocks to a multicast group (RFC 2090) through the given
+    // interface (null: the interface towards the group)
+    public void setMulticast(NetworkInterface ni) throws IOException {
+        multicast = true;
+        if (ni != null) {
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, ni);
+        }
+    }
+
+    // Destination of data blocks of a multicast transfer, or null to send
+    // them to the remote (the master client) only
+    public void setGroup(InetSocketAddress group) {
+        lock.lock();
+        try {
+            this.group = group;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public InetSocketAddress getRemote() {
+        return remote;
+    }
+
+    public void setRemote(InetSocketAddress remote) {
+        lock.lock();
+        try {
+            this.remote = remote;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Interface of the route towards a host, or null if unknown
+    public static NetworkInterface interfaceTowards(InetAddress host) {
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            // Connecting a datagram channel sends nothing, it only picks a route
+            probe.connect(new InetSocketAddress(host, 9));
+            InetSocketAddress local = (InetSocketAddress) probe.getLocalAddress();
+            return NetworkInterface.getByInetAddress(local.getAddress());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Must be called holding the lock
+    private InetSocketAddress dataTarget() {
+        return group != null ? group : remote;
     }
 
     public int getRetries() {
@@ -273,16 +835,145 @@ public class TFTPSocket implements Runnable {
         this.retries = retries;
     }
 
+    // Current retransmission timeout (ms)
     public int getTimeout() {
-        return timeout;
+        return rtt.getTimeout();
     }
 
+    // Initial retransmission timeout, used until a round-trip time is measured
     public void setTimeout(int timeout) {
-        this.timeout = timeout;
+        rtt.reset(timeout);
+    }
+
+    public void setTimeoutBounds(int minTimeout, int maxTimeout) {
+        rtt.setBounds(minTimeout, maxTimeout);
+    }
+
+    // A fixed timeout (e.g. negotiated with the interval option) is neither
+    // adapted to the round-trip time nor backed off
+    public void setAdaptiveTimeout(boolean adaptive) {
+        rtt.setAdaptive(adaptive);
     }
 
-    private void stopTimer(Timer timer) {
-        timer.cancel();
-        timer.purge();
+    public RttEstimator getRttEstimator() {
+        return rtt;
+    }
+
+    DatagramChannel getChannel() {
+        return channel;
+    }
+
+    private void schedule(TimingWheel.Timeout timeout, long delayMillis) {
+        if (executor != null) {
+            executor.schedule(timeout, delayMillis);
+        } else {
+            TimingWheel.shared().schedule(timeout, delayMillis);
+        }
+    }
+
+    private void stopTimer(Retransmission timer) {
+        if (executor != null) {
+            executor.cancel(timer);
+        } else {
+            TimingWheel.shared().cancel(timer);
+        }
+    }
+
+    // Must be called holding the lock
+    private void startTiming() {
+        timedAt = System.nanoTime();
+        timedData = false;
+    }
+
+    // The pending control packet was answered
+    private void sampleControl() {
+        lock.lock();
+        try {
+            if (timedAt != 0 && !timedData) {
+                sampleRtt();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Must be called holding the lock
+    private void sampleRtt() {
+        long elapsed = System.nanoTime() - timedAt;
+        rtt.sample((int) ((elapsed + 999999) / 1000000));
+        timedAt = 0;
+
+        if (metrics != null) {
+            metrics.rtt(elapsed / 1000);
+        }
+    }
+
+    private void duplicate() {
+        if (metrics != null) {
+            metrics.duplicate();
+        }
+    }
+
+    // Resends the pending message until retries are exhausted, backing off
+    // the timeout after each retransmission. Its state is guarded by the
+    // lock of the socket, like the packets it resends.
+    private class Retransmission extends TimingWheel.Timeout {
+        private int attempts;
+        private boolean data;
+
+        // Arm for the window of data blocks or for the control packet
+        void start(boolean data) {
+            lock.lock();
+            try {
+                this.data = data;
+                attempts = 0;
+            } finally {
+                lock.unlock();
+            }
+            schedule(this, rtt.nextTimeout());
+        }
+
+        public void expire() {
+            boolean resend = false;
+            lock.lock();
+            try {
+                if (!isOpen()) {
+                    return;
+                }
+
+                if (attempts < retries) {
+                    ++attempts;
+                    rtt.backoff();
+
+                    // Karn's rule: a retransmitted packet cannot be timed
+                    timedAt = 0;
+                    if (metrics != null) {
+                        metrics.retransmitted(data ? inFlight : 1);
+                    }
+                    if (data) {
+                        for (int i = 0; i < inFlight; ++i) {
+                            transmit(windowSlot(i), dataTarget());
+                        }
+                    } else if (control != null) {
+                        transmitControl();
+                    }
+                    resend = true;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (resend) {
+                schedule(this, rtt.nextTimeout());
+                return;
+            }
+
+            // Give up: the peer is gone. The listener is called without the
+            // lock, as for received packets.
+            if (metrics != null) {
+                metrics.timedOut();
+            }
+            listener.onTimeout();
+        }
     }
 }
@@ -0,0 +1,261 @@
+//=============================================================================
+// Brief     : TFTP Retransmission Timing Wheel
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.socket;
+
+import java.util.concurrent.TimeUnit;
+
+// Hashed timing wheel holding the retransmission deadlines of many sockets.
+// Timeouts are intrusive nodes, so schedule() and cancel() are O(1) and
+// allocation-free; every expiration of a tick is fired in one batch.
+public class TimingWheel {
+
+    private final static int IDLE = 0;
+    private final static int SCHEDULED = 1;
+    private final static int EXPIRING = 2;
+
+    // Default tick and number of slots (one revolution ~ 5 seconds)
+    public final static int DEFAULT_TICK = 10;
+    public final static int DEFAULT_SLOTS = 512;
+
+    private static TimingWheel shared;
+
+    // Deadline node, usually embedded in the object owning the timeout
+    public abstract static class Timeout {
+        private Timeout prev;
+        private Timeout next;
+        private Timeout nextExpired;
+        private int rounds;
+        private int slot;
+        private volatile int state = IDLE;
+
+        // Called by the thread advancing the wheel
+        public abstract void expire();
+
+        public boolean isScheduled() {
+            return state == SCHEDULED;
+        }
+    }
+
+    private Timeout[] slots;
+    private int mask;
+    private long tickNanos;
+    private long startTime;
+
+    // Next tick to be processed
+    private long tick;
+    private int size;
+
+    public TimingWheel() {
+        this(DEFAULT_TICK, DEFAULT_SLOTS);
+    }
+
+    public TimingWheel(int tickMillis, int nSlots) {
+        // Round the number of slots to a power of two
+        int n = 1;
+        while (n < nSlots) {
+            n <<= 1;
+        }
+
+        this.slots = new Timeout[n];
+        this.mask = n - 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.startTime = System.nanoTime();
+        this.tick = 0;
+    }
+
+    // Process-wide wheel driven by its own daemon thread, for sockets that
+    // are not attached to an event loop
+    public static synchronized TimingWheel shared() {
+        if (shared == null) {
+            final TimingWheel wheel = new TimingWheel();
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    wheel.drive();
+                }
+            }, "sstftp-timer");
+            t.setDaemon(true);
+            t.start();
+
+            shared = wheel;
+        }
+
+        return shared;
+    }
+
+    public synchronized void schedule(Timeout timeout, long delayMillis) {
+        if (timeout.state == SCHEDULED) {
+            unlink(timeout);
+        }
+
+        long elapsed = System.nanoTime() - startTime;
+        if (size == 0) {
+            // Wheel was idle: skip the ticks nobody needed
+            tick = Math.max(tick, elapsed / tickNanos);
+        }
+
+        elapsed += TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        long deadline = Math.max((elapsed + tickNanos - 1) / tickNanos, tick);
+
+        timeout.rounds = (int) Math.min((deadline - tick) / slots.length, Integer.MAX_VALUE);
+        timeout.slot = (int) (deadline & mask);
+        timeout.prev = null;
+        timeout.next = slots[timeout.slot];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        slots[timeout.slot] = timeout;
+        timeout.state = SCHEDULED;
+
+        if (size++ == 0) {
+            notifyAll();
+        }
+    }
+
+    public synchronized boolean cancel(Timeout timeout) {
+        switch (timeout.state) {
+            case SCHEDULED: {
+                unlink(timeout);
+                timeout.state = IDLE;
+                return true;
+            }
+
+            case EXPIRING: {
+                // Already collected by advance(), but not fired yet
+                timeout.state = IDLE;
+                return true;
+            }
+
+            default: {
+                return false;
+            }
+        }
+    }
+
+    // Fire every timeout whose deadline has passed
+    public void advance() {
+        Timeout expired = null;
+
+        synchronized (this) {
+            long now = (System.nanoTime() - startTime) / tickNanos;
+            while (tick <= now && size > 0) {
+                Timeout t = slots[(int) (tick & mask)];
+                while (t != null) {
+                    Timeout next = t.next;
+                    if (t.rounds <= 0) {
+                        unlink(t);
+                        t.state = EXPIRING;
+                        t.nextExpired = expired;
+                        expired = t;
+                    } else {
+                        --t.rounds;
+                    }
+                    t = next;
+                }
+                ++tick;
+            }
+        }
+
+        // Fire outside the lock so expirations may reschedule themselves
+        while (expired != null) {
+            Timeout t = expired;
+            expired = t.nextExpired;
+            t.nextExpired = null;
+
+            if (t.state == EXPIRING) {
+                t.state = IDLE;
+                try {
+                    t.expire();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Nanoseconds until the next tick with a timeout to fire (0 if due), or
+    // -1 if nothing is scheduled. Looks one revolution ahead at most: later
+    // timeouts are found again by the call after advance().
+    public synchronized long nanosToNextExpiry() {
+        if (size == 0) {
+            return -1;
+        }
+
+        long next = tick + slots.length;
+        for (long t = tick; t < next; ++t) {
+            for (Timeout timeout = slots[(int) (t & mask)]; timeout != null; timeout = timeout.next) {
+                if (timeout.rounds <= 0) {
+                    next = t;
+                    break;
+                }
+            }
+        }
+
+        return Math.max(0, startTime + next * tickNanos - System.nanoTime());
+    }
+
+    public int getTickMillis() {
+        return (int) TimeUnit.NANOSECONDS.toMillis(tickNanos);
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            slots[timeout.slot] = timeout.next;
+        }
+
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+
+        timeout.prev = null;
+        timeout.next = null;
+        --size;
+    }
+
+    // Tick loop of the shared wheel; parks while there is nothing scheduled
+    private void drive() {
+        long tickMillis = TimeUnit.NANOSECONDS.toMillis(tickNanos);
+        while (true) {
+            try {
+                synchronized (this) {
+                    while (size == 0) {
+                        wait();
+                    }
+                }
+                Thread.sleep(tickMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            advance();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+//=============================================================================
+// Brief     : TFTP Token Bucket
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.socket;
+
+// Token bucket limiting a flow of bytes, shared by any number of threads.
+// Tokens may be borrowed: take() always charges the bucket and tells how
+// long the caller has to wait before sending, so senders are paced rather
+// than refused, and the rate holds on average whatever the packet size.
+public class TokenBucket {
+
+    // Bytes per second, 0 for no limit
+    private volatile long rate;
+
+    // Tokens saved while idle, bounding the burst after a pause
+    private long burst;
+
+    private double tokens;
+    private long updatedAt;
+
+    public TokenBucket(long rate, long burst) {
+        setRate(rate, burst);
+    }
+
+    // Charge bytes sent at now (System.nanoTime()) and return the
+    // nanoseconds to wait before sending them
+    public long take(int bytes, long now) {
+        if (rate <= 0) {
+            return 0;
+        }
+
+        synchronized (this) {
+            long r = rate;
+            if (r <= 0) {
+                return 0;
+            }
+
+            // Refill for the time elapsed, up to the burst
+            tokens = Math.min(burst, tokens + (now - updatedAt) * (r / 1e9));
+            updatedAt = now;
+
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / r);
+        }
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    public synchronized long getBurst() {
+        return burst;
+    }
+
+    // Takes effect on the next packet; a bucket starts full
+    public synchronized void setRate(long rate, long burst) {
+        if (this.rate <= 0) {
+            tokens = burst;
+            updatedAt = System.nanoTime();
+        }
+
+        this.burst = burst;
+        this.rate = rate;
+    }
+}
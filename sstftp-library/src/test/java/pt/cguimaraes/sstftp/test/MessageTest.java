@@ -27,11 +27,16 @@ package pt.cguimaraes.sstftp.test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
 
+import pt.cguimaraes.sstftp.message.AckView;
 import pt.cguimaraes.sstftp.message.AcknowledgeMessage;
 import pt.cguimaraes.sstftp.message.DataMessage;
+import pt.cguimaraes.sstftp.message.DataView;
 import pt.cguimaraes.sstftp.message.ErrorMessage;
 import pt.cguimaraes.sstftp.message.ReadRequestMessage;
+import pt.cguimaraes.sstftp.message.RequestView;
 import pt.cguimaraes.sstftp.message.TFTPMessage;
 import pt.cguimaraes.sstftp.message.WriteRequestMessage;
 
@@ -199,5 +204,87 @@ class MessageTest {
 
             System.out.println("\n");
         }
+
+        {
+            String fileName = "ssTFTP.txt";
+            String mode = "netascii";
+            HashMap<String, String> options = new HashMap<String, String>();
+            options.put("blksize", "1428");
+            options.put("tsize", "0");
+
+            System.out.println("Testing RequestView...");
+            ReadRequestMessage msg = new ReadRequestMessage(fileName, mode, options);
+            ByteBuffer buffer = ByteBuffer.allocate(512);
+            msg.toBuffer(buffer);
+            buffer.flip();
+
+            RequestView view = new RequestView();
+            if (view.wrap(buffer) && view.getOpcode() == TFTPMessage.RRQ) {
+                System.out.println("Opcode: check");
+            } else {
+                System.out.println("Opcode: not check");
+            }
+
+            if (view.getFileName().compareTo(fileName) == 0 && view.isMode("NETASCII")) {
+                System.out.println("Filename and mode: check");
+            } else {
+                System.out.println("Filename and mode: not check");
+            }
+
+            if (view.getOptionCount() == 2 && "1428".equals(view.getOption("BlkSize"))
+                    && view.getOption("interval") == null) {
+                System.out.println("Options: check");
+            } else {
+                System.out.println("Options: not check");
+            }
+
+            System.out.println("\n");
+        }
+
+        {
+            String data = "dataaaa";
+            int blockNumber = 65535;
+
+            System.out.println("Testing DataView and AckView...");
+            DataMessage msg = new DataMessage(blockNumber, new String(data).getBytes());
+            ByteBuffer buffer = ByteBuffer.allocateDirect(516);
+            msg.toBuffer(buffer);
+            buffer.flip();
+
+            DataView view = new DataView();
+            if (view.wrap(buffer) && view.getBlockNumber() == blockNumber) {
+                System.out.println("Block number: check");
+            } else {
+                System.out.println("Block number: not check");
+            }
+
+            if (new String(new DataMessage(view).getData()).compareTo(data) == 0) {
+                System.out.println("Data: check");
+            } else {
+                System.out.println("Data: not check");
+            }
+
+            buffer.clear();
+            new AcknowledgeMessage(blockNumber).toBuffer(buffer);
+            buffer.flip();
+
+            AckView ackView = new AckView();
+            if (ackView.wrap(buffer) && ackView.getBlockNumber() == blockNumber) {
+                System.out.println("Acknowledge block number: check");
+            } else {
+                System.out.println("Acknowledge block number: not check");
+            }
+
+            buffer.clear();
+            buffer.putShort((short) TFTPMessage.ACK);
+            buffer.flip();
+            if (!ackView.wrap(buffer)) {
+                System.out.println("Truncated packet: check");
+            } else {
+                System.out.println("Truncated packet: not check");
+            }
+
+            System.out.println("\n");
+        }
     }
 }
@@ -0,0 +1,85 @@
+//=============================================================================
+// Brief     : TFTP Metrics Test
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.test;
+
+import pt.cguimaraes.sstftp.metrics.Counter;
+import pt.cguimaraes.sstftp.metrics.Histogram;
+
+class MetricsTest {
+
+    public static void main(String args[]) throws Exception {
+        System.out.println("Testing metrics...");
+
+        // Threads adding concurrently to the same counter
+        final Counter counter = new Counter();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    for (int n = 0; n < 100000; ++n) {
+                        counter.increment();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (counter.get() == threads.length * 100000L) {
+            System.out.println("Striped counter: check");
+        } else {
+            System.out.println("Striped counter: not check");
+        }
+
+        // Values 1 to 100000: quantiles known within the bucket width
+        Histogram histogram = new Histogram();
+        for (long value = 1; value <= 100000; ++value) {
+            histogram.record(value);
+        }
+
+        boolean bounded = true;
+        double[] quantiles = { 0.5, 0.9, 0.99, 0.999 };
+        for (double q : quantiles) {
+            long exact = (long) (q * 100000);
+            long estimate = histogram.getQuantile(q);
+            bounded &= estimate >= exact && estimate <= exact * 1.07;
+        }
+
+        if (bounded && histogram.getCount() == 100000 && histogram.getSum() == 100000L * 100001 / 2) {
+            System.out.println("Histogram quantiles: check");
+        } else {
+            System.out.println("Histogram quantiles: not check");
+        }
+
+        if (new Histogram().getQuantile(0.5) == 0 && histogram.getQuantile(0) == 1) {
+            System.out.println("Histogram bounds: check");
+        } else {
+            System.out.println("Histogram bounds: not check");
+        }
+    }
+}
@@ -0,0 +1,202 @@
+//=============================================================================
+// Brief     : Test Netascii Transcoding across Block Boundaries
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+import pt.cguimaraes.sstftp.io.NetAsciiDecoder;
+import pt.cguimaraes.sstftp.io.NetAsciiEncoder;
+import pt.cguimaraes.sstftp.io.NetAsciiIndex;
+import pt.cguimaraes.sstftp.io.NetAsciiReader;
+
+class NetAsciiTest {
+
+    private final static boolean NATIVE_CRLF = "\r\n".equals(System.getProperty("line.separator"));
+
+    public static void main(String args[]) throws Exception {
+        System.out.println("Testing netascii transcoding...");
+
+        // Text dense in line ends, so many of them straddle chunk boundaries
+        Random random = new Random(42);
+        byte[] alphabet = "ab\r\n\0 ".getBytes("ISO-8859-1");
+        byte[] text = new byte[4096];
+        for (int i = 0; i < text.length; ++i) {
+            text[i] = alphabet[random.nextInt(alphabet.length)];
+        }
+        text[text.length - 1] = '\r';
+
+        byte[] netascii = encode(text);
+        boolean encoded = true;
+        boolean decoded = true;
+        for (int chunk = 1; chunk <= 70; ++chunk) {
+            encoded &= Arrays.equals(encode(text, chunk), netascii);
+            decoded &= Arrays.equals(decode(netascii, chunk), decode(netascii));
+        }
+
+        if (encoded) {
+            System.out.println("Encode across blocks: check");
+        } else {
+            System.out.println("Encode across blocks: not check");
+        }
+
+        if (decoded) {
+            System.out.println("Decode across blocks: check");
+        } else {
+            System.out.println("Decode across blocks: not check");
+        }
+
+        if (NATIVE_CRLF || Arrays.equals(decode(netascii, 512), text)) {
+            System.out.println("Round trip: check");
+        } else {
+            System.out.println("Round trip: not check");
+        }
+
+        // Index spanning several checkpoints, blocks read in any order
+        byte[] large = new byte[5 * NetAsciiIndex.STRIDE + 123];
+        for (int i = 0; i < large.length; ++i) {
+            large[i] = alphabet[random.nextInt(alphabet.length)];
+        }
+        byte[] largeNetascii = encode(large);
+
+        NetAsciiIndex index = NetAsciiIndex.build(ByteBuffer.wrap(large));
+        NetAsciiIndex streamed = NetAsciiIndex.build(Channels.newChannel(new ByteArrayInputStream(large)));
+        if (index.getLength() == largeNetascii.length && index.getRawLength() == large.length
+                && index.getCheckpointCount() > 5 && streamed.getLength() == index.getLength()) {
+            System.out.println("Converted length: check");
+        } else {
+            System.out.println("Converted length: not check");
+        }
+
+        int blksize = 1428;
+        int blocks = largeNetascii.length / blksize + 1;
+        NetAsciiReader reader = new NetAsciiReader(ByteBuffer.wrap(large), index);
+        ByteBuffer block = ByteBuffer.allocate(blksize);
+        boolean located = true;
+        int next = 0;
+        for (int i = 0; i < 200; ++i) {
+            // Mostly in order, with jumps back and forth
+            int b = i % 3 == 0 ? random.nextInt(blocks) : next % blocks;
+            next = b + 1;
+            int offset = b * blksize;
+            int n = Math.min(blksize, largeNetascii.length - offset);
+
+            block.clear();
+            located &= reader.read(offset, block) == n
+                    && Arrays.equals(Arrays.copyOf(block.array(), n), Arrays.copyOfRange(largeNetascii, offset, offset + n));
+        }
+
+        if (located) {
+            System.out.println("Blocks located by index: check");
+        } else {
+            System.out.println("Blocks located by index: not check");
+        }
+
+        System.out.println("\n");
+    }
+
+    // Encode reading and writing chunk bytes at a time
+    private static byte[] encode(byte[] text, int chunk) {
+        NetAsciiEncoder encoder = new NetAsciiEncoder();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer dst = ByteBuffer.allocate(chunk);
+
+        int offset = 0;
+        boolean done = false;
+        while (!done) {
+            int n = Math.min(chunk, text.length - offset);
+            ByteBuffer src = ByteBuffer.wrap(text, offset, n);
+            boolean end = offset + n == text.length;
+            dst.clear();
+            encoder.encode(src, dst, end);
+            offset = src.position();
+            out.write(dst.array(), 0, dst.position());
+            done = end && !src.hasRemaining() && !encoder.hasPending();
+        }
+        return out.toByteArray();
+    }
+
+    // Decode chunk bytes at a time
+    private static byte[] decode(byte[] netascii, int chunk) {
+        NetAsciiDecoder decoder = new NetAsciiDecoder();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer dst = ByteBuffer.allocate(chunk + 1);
+
+        for (int offset = 0; offset < netascii.length; offset += chunk) {
+            int n = Math.min(chunk, netascii.length - offset);
+            dst.clear();
+            decoder.decode(ByteBuffer.wrap(netascii, offset, n), dst, offset + n == netascii.length);
+            out.write(dst.array(), 0, dst.position());
+        }
+        return out.toByteArray();
+    }
+
+    // Reference conversions of a whole text
+    private static byte[] encode(byte[] text) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < text.length; ++i) {
+            if (text[i] == '\n') {
+                out.write('\r');
+                out.write('\n');
+            } else if (text[i] != '\r') {
+                out.write(text[i]);
+            } else if (NATIVE_CRLF && i + 1 < text.length && text[i + 1] == '\n') {
+                out.write('\r');
+                out.write('\n');
+                ++i;
+            } else {
+                out.write('\r');
+                out.write(0);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] decode(byte[] netascii) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < netascii.length; ++i) {
+            if (netascii[i] != '\r' || i + 1 == netascii.length) {
+                out.write(netascii[i]);
+            } else if (netascii[i + 1] == '\n') {
+                if (NATIVE_CRLF) {
+                    out.write('\r');
+                }
+                out.write('\n');
+                ++i;
+            } else {
+                out.write('\r');
+                if (netascii[i + 1] == 0) {
+                    ++i;
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,367 @@
+//=============================================================================
+// Brief     : TFTP Load Generator
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.loadgen;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import pt.cguimaraes.sstftp.metrics.Counter;
+import pt.cguimaraes.sstftp.metrics.Histogram;
+import pt.cguimaraes.sstftp.metrics.SocketMetrics;
+import pt.cguimaraes.sstftp.socket.EventLoop;
+import pt.cguimaraes.sstftp.socket.EventLoopGroup;
+import pt.cguimaraes.sstftp.socket.SocketExecutor;
+import pt.cguimaraes.sstftp.socket.SocketThread;
+import pt.cguimaraes.sstftp.socket.TFTPSocket;
+
+// Runs many concurrent transfers against a server, as a crowd of clients
+// booting at once. Sessions arrive at a given rate (or as fast as slots
+// free up), at most a given number at a time, and share a few event loops.
+// With an arrival rate, latencies count from the scheduled arrival, so the
+// time spent waiting for a free slot is not hidden.
+public class LoadGenerator {
+
+    private InetAddress address;
+    private int port;
+
+    private int sessions = 1000;
+    private int concurrency = 100;
+    private double arrivalRate;
+
+    // Files read, with their weights, and the fraction of uploads
+    private List<String> files = new ArrayList<String>();
+    private List<Integer> weights = new ArrayList<Integer>();
+    private int totalWeight;
+    private double uploadRatio;
+    private long uploadSize = 64 * 1024;
+
+    private String mode = "octet";
+    private int blockSize = -1;
+    private int windowSize = 1;
+    private boolean transferSize = true;
+    private int retries = 3;
+    private int interval = 2000;
+
+    // Sessions run on threads of their own from this factory, or share the
+    // event loops when null
+    private ThreadFactory sessionThreads;
+
+    private ByteBuffer payload;
+    private EventLoopGroup loops;
+    private Semaphore slots;
+    private CountDownLatch done;
+
+    private SocketMetrics traffic = new SocketMetrics();
+    private Counter completed = new Counter();
+    private Counter failed = new Counter();
+    private Counter bytes = new Counter();
+    private Map<String, AtomicLong> failures = new TreeMap<String, AtomicLong>();
+
+    // Microseconds to the first answer and to the end of the transfer
+    private Histogram firstResponse = new Histogram();
+    private Histogram latency = new Histogram();
+
+    public LoadGenerator(InetAddress address, int port) {
+        this.address = address;
+        this.port = port;
+    }
+
+    // Run every session and report the results as JSON
+    public String run(int nLoops) throws IOException, InterruptedException {
+        payload = createPayload();
+        loops = new EventLoopGroup(nLoops, "sstftp-loadgen");
+        slots = new Semaphore(concurrency);
+        done = new CountDownLatch(sessions);
+
+        Random random = new Random();
+        long start = System.nanoTime();
+        for (int i = 0; i < sessions; ++i) {
+            long arrival = System.nanoTime();
+            if (arrivalRate > 0) {
+                arrival = start + (long) (i * 1e9 / arrivalRate);
+                for (long wait; (wait = arrival - System.nanoTime()) > 0;) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+
+            slots.acquire();
+            boolean upload = random.nextDouble() < uploadRatio;
+            String fileName = upload ? "loadgen-" + start + "-" + i + ".bin" : pickFile(random);
+            ThreadFactory threads = sessionThreads;
+            SocketExecutor executor = threads != null ? new SocketThread(threads) : loops.next();
+            LoadSession session = new LoadSession(this, executor, upload, fileName, arrival);
+            try {
+                session.start();
+            } catch (IOException e) {
+                failed("io");
+            }
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+
+        loops.shutdown();
+        loops.awaitTermination();
+        return report(elapsed);
+    }
+
+    private String pickFile(Random random) {
+        int n = random.nextInt(totalWeight);
+        for (int i = 0; i < files.size(); ++i) {
+            n -= weights.get(i);
+            if (n < 0) {
+                return files.get(i);
+            }
+        }
+        return files.get(files.size() - 1);
+    }
+
+    // Printable lines ending in CR LF, valid in both modes
+    private static ByteBuffer createPayload() {
+        ByteBuffer content = ByteBuffer.allocateDirect(TFTPSocket.MAX_BLOCK_SIZE);
+        for (int i = 0; content.hasRemaining(); ++i) {
+            if (i % 64 == 62) {
+                content.put((byte) '\r');
+            } else if (i % 64 == 63) {
+                content.put((byte) '\n');
+            } else {
+                content.put((byte) ('a' + i % 26));
+            }
+        }
+        content.clear();
+        return content;
+    }
+
+    void answered(long startedAt) {
+        firstResponse.record((System.nanoTime() - startedAt) / 1000);
+    }
+
+    void completed(long startedAt, long transferred) {
+        latency.record((System.nanoTime() - startedAt) / 1000);
+        bytes.add(transferred);
+        completed.increment();
+        finished();
+    }
+
+    void failed(String reason) {
+        synchronized (failures) {
+            AtomicLong count = failures.get(reason);
+            if (count == null) {
+                count = new AtomicLong();
+                failures.put(reason, count);
+            }
+            count.incrementAndGet();
+        }
+        failed.increment();
+        finished();
+    }
+
+    private void finished() {
+        slots.release();
+        done.countDown();
+    }
+
+    private String report(long elapsed) {
+        double seconds = elapsed / 1e9;
+        StringBuilder out = new StringBuilder(1024);
+        out.append("{\n");
+        field(out, "sessions", sessions);
+        field(out, "concurrency", concurrency);
+        field(out, "arrival_rate", arrivalRate);
+        field(out, "completed", completed.get());
+        field(out, "failed", failed.get());
+
+        out.append("  \"failures\": {");
+        synchronized (failures) {
+            String separator = "";
+            for (Map.Entry<String, AtomicLong> entry : failures.entrySet()) {
+                out.append(separator).append('"').append(entry.getKey()).append("\": ").append(entry.getValue());
+                separator = ", ";
+            }
+        }
+        out.append("},\n");
+
+        field(out, "duration_s", seconds);
+        field(out, "transfers_per_s", completed.get() / seconds);
+        field(out, "bytes", bytes.get());
+        field(out, "throughput_bytes_per_s", bytes.get() / seconds);
+        latencies(out, "latency_ms", latency);
+        latencies(out, "first_response_ms", firstResponse);
+        field(out, "retransmits", traffic.getRetransmits());
+        field(out, "timeouts", traffic.getTimeouts());
+        field(out, "duplicates", traffic.getDuplicates());
+        field(out, "packets_sent", traffic.getPacketsSent());
+        out.append("  \"packets_received\": ").append(traffic.getPacketsReceived()).append("\n}\n");
+        return out.toString();
+    }
+
+    private static void field(StringBuilder out, String name, long value) {
+        out.append("  \"").append(name).append("\": ").append(value).append(",\n");
+    }
+
+    private static void field(StringBuilder out, String name, double value) {
+        out.append("  \"").append(name).append("\": ").append(String.format(Locale.ROOT, "%.3f", value))
+                .append(",\n");
+    }
+
+    private static void latencies(StringBuilder out, String name, Histogram histogram) {
+        long count = histogram.getCount();
+        out.append("  \"").append(name).append("\": {");
+        out.append("\"p50\": ").append(millis(histogram.getQuantile(0.5)));
+        out.append(", \"p90\": ").append(millis(histogram.getQuantile(0.9)));
+        out.append(", \"p99\": ").append(millis(histogram.getQuantile(0.99)));
+        out.append(", \"p999\": ").append(millis(histogram.getQuantile(0.999)));
+        out.append(", \"max\": ").append(millis(histogram.getQuantile(1)));
+        out.append(", \"mean\": ").append(millis(count > 0 ? histogram.getSum() / count : 0));
+        out.append("},\n");
+    }
+
+    private static String millis(long micros) {
+        return String.format(Locale.ROOT, "%.3f", micros / 1000.0);
+    }
+
+    // Shared by the sessions, each sends from its own view
+    ByteBuffer getPayload() {
+        return payload.asReadOnlyBuffer();
+    }
+
+    SocketMetrics getTraffic() {
+        return traffic;
+    }
+
+    InetAddress getAddress() {
+        return address;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    public void setSessions(int sessions) {
+        this.sessions = sessions;
+    }
+
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    // New sessions per second, 0 to start them as soon as a slot is free
+    public void setArrivalRate(double arrivalRate) {
+        this.arrivalRate = arrivalRate;
+    }
+
+    public void addFile(String fileName, int weight) {
+        files.add(fileName);
+        weights.add(weight);
+        totalWeight += weight;
+    }
+
+    // Fraction of sessions uploading instead of reading a file
+    public void setUploadRatio(double uploadRatio) {
+        this.uploadRatio = uploadRatio;
+    }
+
+    long getUploadSize() {
+        return uploadSize;
+    }
+
+    public void setUploadSize(long uploadSize) {
+        this.uploadSize = uploadSize;
+    }
+
+    String getMode() {
+        return mode;
+    }
+
+    public void setMode(String mode) {
+        this.mode = mode;
+    }
+
+    // Requested block size, -1 to not negotiate it
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    int getWindowSize() {
+        return windowSize;
+    }
+
+    public void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    boolean isTransferSize() {
+        return transferSize;
+    }
+
+    public void setTransferSize(boolean transferSize) {
+        this.transferSize = transferSize;
+    }
+
+    int getRetries() {
+        return retries;
+    }
+
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    int getInterval() {
+        return interval;
+    }
+
+    public void setInterval(int interval) {
+        this.interval = interval;
+    }
+
+    public void setSessionThreads(ThreadFactory sessionThreads) {
+        this.sessionThreads = sessionThreads;
+    }
+
+    // Sessions that completed their transfer, and those that failed
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+}
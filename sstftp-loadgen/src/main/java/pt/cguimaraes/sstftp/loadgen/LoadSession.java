@@ -0,0 +1,234 @@
+//=============================================================================
+// Brief     : TFTP Load Generator Session
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.loadgen;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import pt.cguimaraes.sstftp.message.AckView;
+import pt.cguimaraes.sstftp.message.DataView;
+import pt.cguimaraes.sstftp.message.ErrorMessage;
+import pt.cguimaraes.sstftp.message.ErrorView;
+import pt.cguimaraes.sstftp.message.OptionAcknowledgeView;
+import pt.cguimaraes.sstftp.message.ReadRequestMessage;
+import pt.cguimaraes.sstftp.message.RequestView;
+import pt.cguimaraes.sstftp.message.TFTPMessage;
+import pt.cguimaraes.sstftp.message.WriteRequestMessage;
+import pt.cguimaraes.sstftp.socket.SocketExecutor;
+import pt.cguimaraes.sstftp.socket.TFTPMessageListener;
+import pt.cguimaraes.sstftp.socket.TFTPSocket;
+
+// One simulated client: a single RRQ or WRQ run on an event loop or on
+// threads of its own. Downloads are counted and dropped, uploads send
+// synthetic content, so thousands of sessions need no disk. Runs entirely on
+// its executor.
+class LoadSession implements TFTPMessageListener {
+
+    private LoadGenerator generator;
+    private SocketExecutor executor;
+    private TFTPSocket socket;
+
+    private boolean upload;
+    private String fileName;
+    private long startedAt;
+    private boolean answered;
+
+    private int bSize = TFTPSocket.DEFAULT_BLOCK_SIZE;
+    private int window = 1;
+
+    // Next block to send (WRQ) or expected block (RRQ)
+    private int nextBlock = 1;
+    private int unacknowledged;
+    private boolean sentLast;
+    private long transferred;
+
+    // Upload content left, and the block sent from the shared payload
+    private long remaining;
+    private ByteBuffer block;
+
+    LoadSession(LoadGenerator generator, SocketExecutor executor, boolean upload, String fileName, long startedAt) {
+        this.generator = generator;
+        this.executor = executor;
+        this.upload = upload;
+        this.fileName = fileName;
+        this.startedAt = startedAt;
+        this.remaining = generator.getUploadSize();
+    }
+
+    void start() throws IOException {
+        socket = new TFTPSocket(generator.getAddress(), generator.getPort(), this);
+        socket.setRetries(generator.getRetries());
+        socket.setTimeout(generator.getInterval());
+        socket.setMetrics(generator.getTraffic());
+        if (generator.getBlockSize() > 0) {
+            socket.setBlockSize(generator.getBlockSize());
+        }
+        socket.register(executor);
+
+        HashMap<String, String> options = new HashMap<String, String>();
+        if (generator.getBlockSize() > 0) {
+            options.put("blksize", Integer.toString(generator.getBlockSize()));
+        }
+        if (generator.getWindowSize() > 1) {
+            options.put("windowsize", Integer.toString(generator.getWindowSize()));
+        }
+        if (generator.isTransferSize()) {
+            options.put("tsize", upload ? Long.toString(remaining) : "0");
+        }
+
+        final TFTPMessage request;
+        if (upload) {
+            request = new WriteRequestMessage(fileName, generator.getMode(), options);
+        } else {
+            request = new ReadRequestMessage(fileName, generator.getMode(), options);
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                socket.send(request);
+            }
+        });
+    }
+
+    public void onRequest(RequestView request) {
+        fail("illegal");
+    }
+
+    public void onOack(OptionAcknowledgeView oack) {
+        answered();
+
+        try {
+            String value = oack.getOption("blksize");
+            if (value != null) {
+                bSize = Integer.parseInt(value);
+                socket.setBlockSize(bSize);
+            }
+            value = oack.getOption("windowsize");
+            if (value != null) {
+                window = Integer.parseInt(value);
+                socket.setWindowSize(window);
+            }
+        } catch (IOException | NumberFormatException e) {
+            socket.send(new ErrorMessage(ErrorMessage.NOT_DEFINED));
+            fail("options");
+            return;
+        }
+
+        if (upload) {
+            sendBlocks();
+        } else {
+            socket.sendAck(0);
+        }
+    }
+
+    public void onData(DataView data) {
+        if (upload) {
+            fail("illegal");
+            return;
+        }
+        answered();
+
+        // Duplicate or out of order block: ask again from the next one
+        if (data.getBlockNumber() != nextBlock) {
+            socket.sendAck(nextBlock - 1);
+            unacknowledged = 0;
+            return;
+        }
+
+        int length = data.getDataLength();
+        transferred += length;
+        nextBlock = (nextBlock + 1) & 0xFFFF;
+
+        if (length < bSize) {
+            socket.sendAck(data.getBlockNumber());
+            complete();
+        } else if (++unacknowledged >= window) {
+            socket.sendAck(data.getBlockNumber());
+            unacknowledged = 0;
+        }
+    }
+
+    public void onAck(AckView ack) {
+        if (!upload) {
+            fail("illegal");
+            return;
+        }
+        answered();
+
+        // The socket already slid its window over the acknowledged blocks
+        if (sentLast) {
+            if (socket.getInFlight() == 0) {
+                complete();
+            }
+            return;
+        }
+        sendBlocks();
+    }
+
+    public void onError(ErrorView error) {
+        fail("error_" + error.getErrorCode());
+    }
+
+    public void onTimeout() {
+        fail("timeout");
+    }
+
+    private void sendBlocks() {
+        if (block == null) {
+            block = generator.getPayload();
+        }
+
+        while (!sentLast && !socket.isWindowFull()) {
+            int n = (int) Math.min(bSize, remaining);
+            if (n < bSize) {
+                sentLast = true;
+            }
+
+            block.clear().limit(n);
+            socket.sendData(nextBlock, block);
+            nextBlock = (nextBlock + 1) & 0xFFFF;
+            remaining -= n;
+            transferred += n;
+        }
+    }
+
+    private void answered() {
+        if (!answered) {
+            answered = true;
+            generator.answered(startedAt);
+        }
+    }
+
+    private void complete() {
+        socket.close();
+        generator.completed(startedAt, transferred);
+    }
+
+    private void fail(String reason) {
+        socket.close();
+        generator.failed(reason);
+    }
+}
@@ -0,0 +1,281 @@
+//=============================================================================
+// Brief     : TFTP Load Generator Main
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.loadgen;
+
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import pt.cguimaraes.sstftp.socket.TFTPSocket;
+
+public class Main {
+
+    @SuppressWarnings("static-access")
+    public static void main(String args[]) throws Exception {
+        // create the Options
+        Options arguments = new Options();
+        arguments.addOption(OptionBuilder.withLongOpt("help")
+                .withDescription("print this message")
+                .create('h'));
+        arguments.addOption(OptionBuilder.withLongOpt("server")
+                .withDescription("server host (default: 127.0.0.1)")
+                .hasArgs(1)
+                .create('c'));
+        arguments.addOption(OptionBuilder.withLongOpt("port")
+                .withDescription("server port (default: 69)")
+                .hasArgs(1)
+                .create('p'));
+        arguments.addOption(OptionBuilder.withLongOpt("sessions")
+                .withDescription("number of transfers to run (default: 1000)")
+                .hasArgs(1)
+                .create('n'));
+        arguments.addOption(OptionBuilder.withLongOpt("concurrency")
+                .withDescription("maximum transfers running at once (default: 100)")
+                .hasArgs(1)
+                .create('k'));
+        arguments.addOption(OptionBuilder.withLongOpt("arrival-rate")
+                .withDescription("new transfers per second (default: 0, as soon as one ends)")
+                .hasArgs(1)
+                .create('a'));
+        arguments.addOption(OptionBuilder.withLongOpt("files")
+                .withDescription("files to read, with optional weights: name[:weight],...")
+                .hasArgs(1)
+                .create('f'));
+        arguments.addOption(OptionBuilder.withLongOpt("uploads")
+                .withDescription("fraction of transfers uploading a file [0-1] (default: 0)")
+                .hasArgs(1)
+                .create('u'));
+        arguments.addOption(OptionBuilder.withLongOpt("upload-size")
+                .withDescription("bytes of each upload (default: 65536)")
+                .hasArgs(1)
+                .create('z'));
+        arguments.addOption(OptionBuilder.withLongOpt("mode")
+                .withDescription("file transfer mode (default: octet)")
+                .hasArgs(1)
+                .create('m'));
+        arguments.addOption(OptionBuilder.withLongOpt("blksize")
+                .withDescription("block size [8-65464] (default: 512, not negotiated)")
+                .hasArgs(1)
+                .create('b'));
+        arguments.addOption(OptionBuilder.withLongOpt("windowsize")
+                .withDescription("number of blocks sent per acknowledge [1-65535] (default: 1)")
+                .hasArgs(1)
+                .create('w'));
+        arguments.addOption(OptionBuilder.withLongOpt("no-tsize")
+                .withDescription("do not negotiate the transfer size (default: negotiated)")
+                .create('s'));
+        arguments.addOption(OptionBuilder.withLongOpt("retries")
+                .withDescription("maximum retries (default: 3)")
+                .hasArgs(1)
+                .create('r'));
+        arguments.addOption(OptionBuilder.withLongOpt("interval")
+                .withDescription("initial timeout interval to retransmissions (ms) (default: 2000)")
+                .hasArgs(1)
+                .create('i'));
+        arguments.addOption(OptionBuilder.withLongOpt("event-loops")
+                .withDescription("threads running the transfers (default: number of processors)")
+                .hasArgs(1)
+                .create('e'));
+        arguments.addOption(OptionBuilder.withLongOpt("session-threads")
+                .withDescription("run sessions on the event loops, or each on virtual or platform threads of its own"
+                        + " [loop, virtual, platform] (default: loop)")
+                .hasArgs(1)
+                .create('t'));
+        arguments.addOption(OptionBuilder.withLongOpt("output")
+                .withDescription("file to write the JSON report to (default: standard output)")
+                .hasArgs(1)
+                .create('o'));
+
+        LoadGenerator generator = null;
+        int eventLoops = Runtime.getRuntime().availableProcessors();
+        String output = null;
+
+        try {
+            CommandLineParser parser = new GnuParser();
+            CommandLine line = parser.parse(arguments, args);
+
+            // If help is defined
+            if (line.hasOption('h')) {
+                HelpFormatter formatter = new HelpFormatter();
+                formatter.printHelp(80, "sstftp-loadgen ", "", arguments, "", true);
+                System.exit(0);
+            }
+
+            // Parse server address
+            InetAddress address;
+            try {
+                address = InetAddress.getByName(line.getOptionValue('c', "127.0.0.1"));
+            } catch (UnknownHostException e) {
+                throw new ParseException("Could not find hostname");
+            }
+
+            int port = Integer.parseInt(line.getOptionValue('p', "69"));
+            if (port <= 0 || port > 65535) {
+                throw new ParseException("Invalid port number");
+            }
+            generator = new LoadGenerator(address, port);
+
+            // Parse load shape
+            if (line.hasOption('n')) {
+                int sessions = Integer.parseInt(line.getOptionValue('n'));
+                if (sessions <= 0) {
+                    throw new ParseException("Invalid number of sessions");
+                }
+                generator.setSessions(sessions);
+            }
+            if (line.hasOption('k')) {
+                int concurrency = Integer.parseInt(line.getOptionValue('k'));
+                if (concurrency <= 0) {
+                    throw new ParseException("Invalid concurrency");
+                }
+                generator.setConcurrency(concurrency);
+            }
+            if (line.hasOption('a')) {
+                double rate = Double.parseDouble(line.getOptionValue('a'));
+                if (rate < 0) {
+                    throw new ParseException("Invalid arrival rate");
+                }
+                generator.setArrivalRate(rate);
+            }
+
+            // Parse file mix
+            double uploads = Double.parseDouble(line.getOptionValue('u', "0"));
+            if (uploads < 0 || uploads > 1) {
+                throw new ParseException("Invalid fraction of uploads");
+            }
+            generator.setUploadRatio(uploads);
+
+            if (line.hasOption('f')) {
+                for (String file : line.getOptionValue('f').split(",")) {
+                    int weight = 1;
+                    int colon = file.lastIndexOf(':');
+                    if (colon != -1) {
+                        weight = Integer.parseInt(file.substring(colon + 1));
+                        file = file.substring(0, colon);
+                    }
+                    if (file.isEmpty() || weight <= 0) {
+                        throw new ParseException("Invalid file mix");
+                    }
+                    generator.addFile(file, weight);
+                }
+            } else if (uploads < 1) {
+                throw new ParseException("Files to read are missing");
+            }
+
+            if (line.hasOption('z')) {
+                long size = Long.parseLong(line.getOptionValue('z'));
+                if (size < 0) {
+                    throw new ParseException("Invalid upload size");
+                }
+                generator.setUploadSize(size);
+            }
+
+            // Parse transfer options
+            String mode = line.getOptionValue('m', "octet").toLowerCase();
+            if (!mode.equals("octet") && !mode.equals("netascii")) {
+                throw new ParseException("Invalid mode");
+            }
+            generator.setMode(mode);
+
+            if (line.hasOption('b')) {
+                int blksize = Integer.parseInt(line.getOptionValue('b'));
+                if (blksize < TFTPSocket.MIN_BLOCK_SIZE || blksize > TFTPSocket.MAX_BLOCK_SIZE) {
+                    throw new ParseException("Invalid block size");
+                }
+                generator.setBlockSize(blksize);
+            }
+            if (line.hasOption('w')) {
+                int windowsize = Integer.parseInt(line.getOptionValue('w'));
+                if (windowsize < 1 || windowsize > 65535) {
+                    throw new ParseException("Invalid window size");
+                }
+                generator.setWindowSize(windowsize);
+            }
+            generator.setTransferSize(!line.hasOption('s'));
+
+            if (line.hasOption('r')) {
+                int retries = Integer.parseInt(line.getOptionValue('r'));
+                if (retries < 0) {
+                    throw new ParseException("Invalid maximum retries value");
+                }
+                generator.setRetries(retries);
+            }
+            if (line.hasOption('i')) {
+                int interval = Integer.parseInt(line.getOptionValue('i'));
+                if (interval <= 0) {
+                    throw new ParseException("Invalid timeout interval to retransmissions");
+                }
+                generator.setInterval(interval);
+            }
+
+            if (line.hasOption('e')) {
+                eventLoops = Integer.parseInt(line.getOptionValue('e'));
+                if (eventLoops <= 0) {
+                    throw new ParseException("Invalid number of event loops");
+                }
+            }
+
+            if (line.hasOption('t')) {
+                String threads = line.getOptionValue('t').toLowerCase();
+                if (threads.equals("virtual")) {
+                    generator.setSessionThreads(Thread.ofVirtual().name("sstftp-loadgen-session-", 0).factory());
+                } else if (threads.equals("platform")) {
+                    generator.setSessionThreads(Thread.ofPlatform().name("sstftp-loadgen-session-", 0)
+                            .daemon().factory());
+                } else if (!threads.equals("loop")) {
+                    throw new ParseException("Invalid session threads");
+                }
+            }
+            output = line.getOptionValue('o');
+
+        } catch (ParseException | NumberFormatException e) {
+            System.err.println(e.getMessage());
+
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp(80, "sstftp-loadgen ", "", arguments, "", true);
+            System.exit(1);
+        }
+
+        String report = generator.run(eventLoops);
+        if (output == null) {
+            System.out.print(report);
+        } else {
+            try (OutputStream out = new FileOutputStream(output)) {
+                out.write(report.getBytes(Charset.forName("UTF-8")));
+            }
+        }
+    }
+}
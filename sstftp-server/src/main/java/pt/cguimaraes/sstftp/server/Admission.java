@@ -0,0 +1,310 @@
+//=============================================================================
+// Brief     : TFTP Server Request Admission
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.server;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import pt.cguimaraes.sstftp.message.RequestView;
+import pt.cguimaraes.sstftp.message.TFTPMessage;
+import pt.cguimaraes.sstftp.socket.EventLoop;
+
+// Second stage of request intake. Listeners only copy each request onto a
+// lock-free queue; a fixed pool of workers decodes it, opens the file and
+// negotiates the options before the session moves to its event loop. A slow
+// disk stalls the workers, never the listeners nor the running transfers.
+//
+// Under overload the workers wait for a session slot and for room in the
+// in-flight budget, so the queue fills up. A full queue first sheds the
+// oldest RRQ its client has already sent again, then refuses new requests,
+// which the listener answers with a busy error. Retransmitted RRQs are
+// also queued apart, so shedding one costs the listener no scan of the
+// queue. Requests that were sent again or waited longer than a
+// retransmission timeout are dropped when dequeued: admitting them would
+// only hold a slot for a client that moved on or gave up.
+class Admission {
+
+    public final static int DEFAULT_MAX_PENDING = 1024;
+
+    // A request as received, with the loop its session is to run on
+    static class Pending {
+        final SessionKey key;
+        final int opcode;
+        final ByteBuffer packet;
+        final InetSocketAddress source;
+        final EventLoop loop;
+        final long queuedAt;
+
+        // A newer copy of the request was queued or refused since
+        volatile boolean superseded;
+
+        // Set by the worker that takes the request, or by the listener that
+        // sheds it, whichever comes first
+        final AtomicBoolean taken = new AtomicBoolean();
+
+        Pending(SessionKey key, int opcode, ByteBuffer packet, InetSocketAddress source, EventLoop loop,
+                long queuedAt) {
+            this.key = key;
+            this.opcode = opcode;
+            this.packet = packet;
+            this.source = source;
+            this.loop = loop;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    private TFTPServer server;
+
+    // Any listener adds, any worker takes. A permit is released per request
+    // so idle workers sleep instead of spinning on the queue.
+    private ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<Pending>();
+    private Semaphore ready = new Semaphore(0);
+    private AtomicInteger depth = new AtomicInteger();
+
+    // Latest queued copy of each request, to spot retransmissions
+    private ConcurrentMap<SessionKey, Pending> queued = new ConcurrentHashMap<SessionKey, Pending>();
+
+    // RRQs sent again while queued, oldest first. A shed request is left in
+    // the queue for a worker to skip; there are never more of them than
+    // requests pending.
+    private ConcurrentLinkedQueue<Pending> sheddable = new ConcurrentLinkedQueue<Pending>();
+    private AtomicInteger shed = new AtomicInteger();
+
+    // Limits (0: none), and the sessions and window bytes admitted so far,
+    // guarded by this
+    private volatile int maxPending = DEFAULT_MAX_PENDING;
+    private volatile int maxSessions;
+    private volatile long maxInFlight;
+    private int sessions;
+    private long inFlight;
+
+    // Requests older than this are stale (nanoseconds)
+    private long maxWait;
+
+    private Thread[] workers;
+    private volatile boolean running = true;
+
+    Admission(TFTPServer server, int nWorkers) {
+        this.server = server;
+        this.maxWait = server.getInterval() * 1000000L;
+        this.workers = new Thread[nWorkers];
+        for (int i = 0; i < nWorkers; ++i) {
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, "sstftp-admission-" + i);
+            workers[i].setDaemon(true);
+        }
+    }
+
+    void start() {
+        for (Thread worker : workers) {
+            worker.start();
+        }
+    }
+
+    // Queue a request received by a listener, whose view is reused once this
+    // returns: only its bytes are copied here. False if the queue is full.
+    boolean submit(RequestView request, EventLoop loop) {
+        SessionKey key = new SessionKey(request.getSource(), request.getFileName());
+        int max = maxPending;
+        if (max > 0 && depth.get() >= max && !shed()) {
+            // The client is told to go away, drop what it sent before
+            Pending previous = queued.remove(key);
+            if (previous != null) {
+                supersede(previous);
+            }
+
+            server.getMetrics().refusedRequest();
+            return false;
+        }
+
+        ByteBuffer view = request.getBuffer().duplicate();
+        view.limit(view.position() + request.getLength());
+
+        ByteBuffer packet = ByteBuffer.allocate(request.getLength());
+        packet.put(view);
+        packet.flip();
+
+        Pending pending = new Pending(key, request.getOpcode(), packet, request.getSource(), loop,
+                System.nanoTime());
+        Pending previous = queued.put(key, pending);
+        if (previous != null) {
+            supersede(previous);
+        }
+
+        queue.offer(pending);
+        depth.incrementAndGet();
+        ready.release();
+        return true;
+    }
+
+    private void supersede(Pending pending) {
+        pending.superseded = true;
+        if (pending.opcode != TFTPMessage.RRQ) {
+            return;
+        }
+
+        // Forget the oldest ones workers took since
+        Pending oldest;
+        while ((oldest = sheddable.peek()) != null && oldest.taken.get()) {
+            sheddable.remove(oldest);
+        }
+        sheddable.offer(pending);
+    }
+
+    // Drop the oldest queued RRQ that was retransmitted, false if none. It
+    // is left in the queue with its permit, for a worker to skip.
+    private boolean shed() {
+        if (shed.get() >= maxPending) {
+            return false;
+        }
+
+        Pending pending;
+        while ((pending = sheddable.poll()) != null) {
+            if (pending.taken.compareAndSet(false, true)) {
+                shed.incrementAndGet();
+                depth.decrementAndGet();
+                server.getMetrics().shedRequest();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void work() {
+        ServerMetrics metrics = server.getMetrics();
+        while (running) {
+            try {
+                ready.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            Pending request = queue.poll();
+            if (request == null) {
+                continue;
+            }
+            if (!request.taken.compareAndSet(false, true)) {
+                // Shed while queued
+                shed.decrementAndGet();
+                continue;
+            }
+            depth.decrementAndGet();
+            queued.remove(request.key, request);
+
+            long startedAt = System.nanoTime();
+            metrics.queued(request.queuedAt, startedAt);
+            if (request.superseded || startedAt - request.queuedAt > maxWait) {
+                metrics.shedRequest();
+                continue;
+            }
+
+            try {
+                server.admit(request);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                Logger.getGlobal().log(Level.WARNING, "Cannot admit request from " + request.key, e);
+            }
+            metrics.admitted(startedAt);
+        }
+    }
+
+    // Wait for a session slot and for room for its window in the in-flight
+    // budget. A session larger than the whole budget runs alone.
+    synchronized void acquire(long windowBytes) throws InterruptedException {
+        while ((maxSessions > 0 && sessions >= maxSessions)
+                || (maxInFlight > 0 && inFlight > 0 && inFlight + windowBytes > maxInFlight)) {
+            wait();
+        }
+        sessions++;
+        inFlight += windowBytes;
+    }
+
+    // A session admitted with acquire() ended
+    synchronized void release(long windowBytes) {
+        sessions--;
+        inFlight -= windowBytes;
+        notifyAll();
+    }
+
+    synchronized long getInFlight() {
+        return inFlight;
+    }
+
+    int getMaxPending() {
+        return maxPending;
+    }
+
+    void setMaxPending(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    int getMaxSessions() {
+        return maxSessions;
+    }
+
+    synchronized void setMaxSessions(int maxSessions) {
+        this.maxSessions = maxSessions;
+        notifyAll();
+    }
+
+    long getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    synchronized void setMaxInFlight(long maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        notifyAll();
+    }
+
+    // Requests waiting for a worker
+    int getDepth() {
+        return depth.get();
+    }
+
+    int getWorkerCount() {
+        return workers.length;
+    }
+
+    // Stop the workers, dropping the requests still queued
+    void shutdown() {
+        running = false;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+//=============================================================================
+// Brief     : TFTP Server File Cache
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.server;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Keeps the contents of the most requested files off-heap, so popular
+// files (e.g. boot images) are served without touching the filesystem
+// beyond one stat per request. Entries are keyed by canonical path and
+// replaced as soon as the modification time or size changes; the least
+// recently used ones are evicted to stay within the byte budget.
+public class FileCache {
+
+    private long budget;
+    private long used;
+
+    // Access ordered, so iteration starts at the least recently used entry
+    private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    // Loads in progress, shared by every concurrent miss of the same file
+    private ConcurrentMap<String, FutureTask<Entry>> loading = new ConcurrentHashMap<String, FutureTask<Entry>>();
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+
+    public FileCache(long budget) {
+        this.budget = budget;
+    }
+
+    // Read-only view of the file contents, positioned at the beginning, or
+    // null if the file does not fit in the cache
+    public ByteBuffer get(File file) throws IOException {
+        String path = file.getCanonicalPath();
+        long modified = file.lastModified();
+        long size = file.length();
+
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(path);
+        }
+        if (entry != null && entry.modified == modified && entry.size == size) {
+            hits.incrementAndGet();
+            return entry.content.duplicate();
+        }
+
+        misses.incrementAndGet();
+        if (size > budget || size > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        // Only the first miss reads the file, the others wait for it
+        FutureTask<Entry> task = new FutureTask<Entry>(new Loader(file, modified, size));
+        FutureTask<Entry> running = loading.putIfAbsent(path, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+                put(path, task.get());
+            } catch (ExecutionException | InterruptedException e) {
+                // Reported to every waiter below
+            } finally {
+                loading.remove(path, task);
+            }
+        }
+
+        try {
+            return running.get().content.duplicate();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void put(String path, Entry entry) {
+        synchronized (entries) {
+            Entry old = entries.put(path, entry);
+            if (old != null) {
+                used -= old.size;
+            }
+            used += entry.size;
+
+            // Evict the least recently used files
+            Iterator<Entry> it = entries.values().iterator();
+            while (used > budget && it.hasNext()) {
+                used -= it.next().size;
+                it.remove();
+            }
+        }
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    // Bytes held by cached files
+    public long getSize() {
+        synchronized (entries) {
+            return used;
+        }
+    }
+
+    public int getCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    // Fraction of requests served from the cache
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    // Contents of a file as it was when looked up
+    private static class Entry {
+        final long modified;
+        final long size;
+        final ByteBuffer content;
+
+        Entry(long modified, long size, ByteBuffer content) {
+            this.modified = modified;
+            this.size = size;
+            this.content = content;
+        }
+    }
+
+    // Reads a whole file into a direct buffer
+    private static class Loader implements Callable<Entry> {
+        private File file;
+        private long modified;
+        private long size;
+
+        Loader(File file, long modified, long size) {
+            this.file = file;
+            this.modified = modified;
+            this.size = size;
+        }
+
+        public Entry call() throws IOException {
+            if (!file.isFile()) {
+                throw new FileNotFoundException(file.getPath());
+            }
+
+            ByteBuffer content = ByteBuffer.allocateDirect((int) size);
+            try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                FileChannel channel = in.getChannel();
+                while (content.hasRemaining()) {
+                    if (channel.read(content) < 0) {
+                        // Truncated while loading: cache what was read, the
+                        // next stat will not match and reload it
+                        break;
+                    }
+                }
+            }
+
+            content.flip();
+            return new Entry(modified, size, content.asReadOnlyBuffer());
+        }
+    }
+}
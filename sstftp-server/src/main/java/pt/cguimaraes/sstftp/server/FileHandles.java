@@ -0,0 +1,161 @@
+//=============================================================================
+// Brief     : TFTP Server Shared File Handles
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.HashMap;
+import java.util.Map;
+
+import pt.cguimaraes.sstftp.socket.TFTPSocket;
+
+// Read-only handles of the files being served, shared by every session
+// reading the same file: the first one opens it, the last one closes it.
+// Files are mapped once, in regions the sessions read their blocks from.
+// Handles are keyed by canonical path and checked against the modification
+// time and size, so a file replaced on disk gets a new handle while the
+// sessions already reading it keep the old one.
+class FileHandles {
+
+    // Largest region of a file mapped at once
+    final static long MAP_REGION = 1 << 30;
+
+    private Map<String, Handle> handles = new HashMap<String, Handle>();
+
+    // Handle of a file, to be given back with close(). Files are opened
+    // outside the lock, so a slow filesystem only delays its own requests.
+    Handle open(File file) throws IOException {
+        String path = file.getCanonicalPath();
+        long modified = file.lastModified();
+        long size = file.length();
+
+        synchronized (handles) {
+            Handle handle = handles.get(path);
+            if (handle != null && handle.matches(modified, size)) {
+                ++handle.references;
+                return handle;
+            }
+        }
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        Handle opened;
+        try {
+            opened = new Handle(path, in.getChannel(), modified, in.length());
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+
+        Handle handle;
+        synchronized (handles) {
+            // Another session may have opened the same file meanwhile
+            handle = handles.get(path);
+            if (handle == null || !handle.matches(modified, size)) {
+                handle = opened;
+                handles.put(path, handle);
+            }
+            ++handle.references;
+        }
+
+        if (handle != opened) {
+            opened.channel.close();
+        }
+        return handle;
+    }
+
+    void close(Handle handle) {
+        synchronized (handles) {
+            if (--handle.references > 0) {
+                return;
+            }
+
+            // A newer handle of the same path stays
+            handles.remove(handle.path, handle);
+        }
+
+        // Mapped regions stay valid until garbage collected
+        try {
+            handle.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    static final class Handle {
+        private final String path;
+        private final FileChannel channel;
+        private final long modified;
+        private final long length;
+        private int references;
+
+        // Regions mapped so far. Region i starts at i * MAP_REGION and runs a
+        // block further, so any block starting in a region fits in it.
+        private MappedByteBuffer[] regions;
+
+        private Handle(String path, FileChannel channel, long modified, long length) {
+            this.path = path;
+            this.channel = channel;
+            this.modified = modified;
+            this.length = length;
+            this.regions = new MappedByteBuffer[(int) (length / MAP_REGION) + 1];
+        }
+
+        // Still the file as last seen by stat
+        private boolean matches(long modified, long size) {
+            return this.modified == modified && this.length == size;
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        FileChannel getChannel() {
+            return channel;
+        }
+
+        // Region holding a position
+        int regionOf(long position) {
+            return (int) (position / MAP_REGION);
+        }
+
+        // View of region i, for the calling session only
+        ByteBuffer region(int i) throws IOException {
+            synchronized (this) {
+                if (regions[i] == null) {
+                    long offset = i * MAP_REGION;
+                    long size = Math.min(MAP_REGION + TFTPSocket.MAX_BLOCK_SIZE, length - offset);
+                    regions[i] = channel.map(MapMode.READ_ONLY, offset, size);
+                }
+                return regions[i].duplicate();
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+//=============================================================================
+// Brief     : TFTP Server Upload Group Commit
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+// Makes completed uploads durable in batches. Uploads that complete while a
+// cycle is running wait for the next one, which syncs all their files at
+// once, renames them into place and syncs each directory a single time,
+// instead of every upload paying for its own syncs one after the other.
+class GroupCommit implements Runnable {
+
+    private BlockingQueue<WriteBehind> pending = new LinkedBlockingQueue<WriteBehind>();
+    private Executor syncers;
+    private Thread thread;
+
+    private AtomicLong cycles = new AtomicLong();
+    private AtomicLong commits = new AtomicLong();
+
+    // Files are synced concurrently on syncers
+    GroupCommit(Executor syncers) {
+        this.syncers = syncers;
+        this.thread = new Thread(this, "sstftp-commit");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    // Commit a complete upload in the next cycle, the writer is told when done
+    void commit(WriteBehind upload) {
+        pending.add(upload);
+    }
+
+    long getCycles() {
+        return cycles.get();
+    }
+
+    long getCommits() {
+        return commits.get();
+    }
+
+    public void run() {
+        List<WriteBehind> batch = new ArrayList<WriteBehind>();
+        while (true) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            pending.drainTo(batch);
+
+            cycle(batch);
+            Logger.getGlobal().fine("Group commit of " + batch.size() + " uploads");
+            cycles.incrementAndGet();
+            commits.addAndGet(batch.size());
+            batch.clear();
+        }
+    }
+
+    private void cycle(List<WriteBehind> batch) {
+        // Sync every file of the batch at the same time
+        List<FutureTask<Void>> syncs = new ArrayList<FutureTask<Void>>(batch.size());
+        for (final WriteBehind upload : batch) {
+            FutureTask<Void> sync = new FutureTask<Void>(new Callable<Void>() {
+                public Void call() throws IOException {
+                    upload.getChannel().force(true);
+                    return null;
+                }
+            });
+            syncs.add(sync);
+            syncers.execute(sync);
+        }
+
+        // Rename the synced files into place
+        IOException[] failures = new IOException[batch.size()];
+        Set<File> directories = new LinkedHashSet<File>();
+        for (int i = 0; i < batch.size(); ++i) {
+            WriteBehind upload = batch.get(i);
+            try {
+                syncs.get(i).get();
+                move(upload.getStaged(), upload.getTarget());
+                directories.add(upload.getTarget().getAbsoluteFile().getParentFile());
+            } catch (InterruptedException e) {
+                failures[i] = new IOException(e);
+            } catch (ExecutionException e) {
+                failures[i] = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                        : new IOException(e.getCause());
+            } catch (IOException e) {
+                failures[i] = e;
+            }
+        }
+
+        // Make the renames durable, once per directory
+        for (File directory : directories) {
+            syncDirectory(directory);
+        }
+
+        for (int i = 0; i < batch.size(); ++i) {
+            batch.get(i).committed(failures[i]);
+        }
+    }
+
+    // Replace target with staged at once, readers see either file whole
+    static void move(File staged, File target) throws IOException {
+        try {
+            Files.move(staged.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(staged.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Sync a directory entry, where the platform allows opening directories
+    static void syncDirectory(File directory) {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported (e.g. Windows), the rename is left to the OS
+        }
+    }
+}
@@ -1,11 +1,18 @@
 package pt.cguimaraes.sstftp.server;
 
 import java.io.File;
-import java.net.SocketException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.GnuParser;
@@ -14,11 +21,14 @@ import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import pt.cguimaraes.sstftp.socket.RttEstimator;
+import pt.cguimaraes.sstftp.socket.TFTPSocket;
+
 public class Main {
 
     @SuppressWarnings("static-access")
     public static void main(String[] args)
-            throws SocketException, NoSuchMethodException, SecurityException, UnknownHostException {
+            throws IOException {
         Logger logger = Logger.getLogger("sstftp-server");
         logger.setLevel(Level.ALL);
 
@@ -44,14 +54,89 @@ public class Main {
                 .withDescription("timeout interval to retransmissions (ms) [1-255000] (default: 2000)")
                 .hasArgs(1)
                 .create('i'));
+        arguments.addOption(OptionBuilder.withLongOpt("min-interval")
+                .withDescription("minimum adaptive timeout to retransmissions (ms) (default: 20)")
+                .hasArgs(1)
+                .create('n'));
+        arguments.addOption(OptionBuilder.withLongOpt("max-interval")
+                .withDescription("maximum adaptive timeout to retransmissions (ms) (default: 60000)")
+                .hasArgs(1)
+                .create('x'));
         arguments.addOption(OptionBuilder.withLongOpt("blksize")
-                .withDescription("Maximum block size allowed (default: no limit)")
+                .withDescription("Maximum block size allowed [8-65464] (default: no limit)")
                 .hasArgs(1)
                 .create('b'));
         arguments.addOption(OptionBuilder.withLongOpt("tsize")
                 .withDescription("Maximum file size allowed (default: no limit)")
                 .hasArgs(1)
                 .create('s'));
+        arguments.addOption(OptionBuilder.withLongOpt("windowsize")
+                .withDescription("Maximum window size allowed [1-65535] (default: no limit)")
+                .hasArgs(1)
+                .create('w'));
+        arguments.addOption(OptionBuilder.withLongOpt("event-loops")
+                .withDescription("Number of event-loop threads serving sessions (default: number of processors)")
+                .hasArgs(1)
+                .create('e'));
+        arguments.addOption(OptionBuilder.withLongOpt("listeners")
+                .withDescription("Number of sockets sharing the port with SO_REUSEPORT, each on its own event loop (default: 1)")
+                .hasArgs(1)
+                .create('L'));
+        arguments.addOption(OptionBuilder.withLongOpt("admission-workers")
+                .withDescription("Number of threads opening files and negotiating options (default: number of event loops)")
+                .hasArgs(1)
+                .create('a'));
+        arguments.addOption(OptionBuilder.withLongOpt("session-threads")
+                .withDescription("Run sessions on the event loops, or each on virtual or platform threads of its own"
+                        + " [loop, virtual, platform] (default: loop)")
+                .hasArgs(1)
+                .create('t'));
+        arguments.addOption(OptionBuilder.withLongOpt("max-pending")
+                .withDescription("Requests queued for admission before new ones are refused as busy (default: "
+                        + Admission.DEFAULT_MAX_PENDING + ", 0 for no limit)")
+                .hasArgs(1)
+                .create('Q'));
+        arguments.addOption(OptionBuilder.withLongOpt("max-sessions")
+                .withDescription("Sessions running at once, further requests are queued (default: 0, no limit)")
+                .hasArgs(1)
+                .create('S'));
+        arguments.addOption(OptionBuilder.withLongOpt("max-inflight")
+                .withDescription("Bytes the windows of running sessions may hold, with an optional k, m or g suffix"
+                        + " (default: 0, no limit)")
+                .hasArgs(1)
+                .create('I'));
+        arguments.addOption(OptionBuilder.withLongOpt("cache")
+                .withDescription("Memory for caching the contents of served files (MiB) (default: 0, disabled)")
+                .hasArgs(1)
+                .create('c'));
+        arguments.addOption(OptionBuilder.withLongOpt("multicast")
+                .withDescription("Group address[:first port] of multicast transfers (RFC 2090) (default: disabled)")
+                .hasArgs(1)
+                .create('g'));
+        arguments.addOption(OptionBuilder.withLongOpt("fsync")
+                .withDescription("Sync uploads: never, once complete (file), batched with other uploads (group)"
+                        + " or every given MiB (default: never)")
+                .hasArgs(1)
+                .create('f'));
+        arguments.addOption(OptionBuilder.withLongOpt("rate-limit")
+                .withDescription("Bytes per second sent by the server, with an optional k, m or g suffix"
+                        + " (default: 0, unlimited)")
+                .hasArgs(1)
+                .create('l'));
+        arguments.addOption(OptionBuilder.withLongOpt("client-rate-limit")
+                .withDescription("Bytes per second sent to each client address (default: 0, unlimited)")
+                .hasArgs(1)
+                .create('u'));
+        arguments.addOption(OptionBuilder.withLongOpt("class-rate-limit")
+                .withDescription("Bytes per second sent of files whose name matches a glob pattern:"
+                        + " pattern=rate,... (e.g. *.img=50m)")
+                .hasArgs(1)
+                .create('k'));
+        arguments.addOption(OptionBuilder.withLongOpt("metrics")
+                .withDescription("[Address:]port of the HTTP endpoint serving metrics on /metrics"
+                        + " (default address: 127.0.0.1, default: disabled)")
+                .hasArgs(1)
+                .create('m'));
         arguments.addOption(OptionBuilder.withLongOpt("log")
                 .withDescription("Log level [0-2] (default: 1)")
                 .hasArgs(1)
@@ -61,8 +146,25 @@ public class Main {
         String localDir = "";
         int retries = 3;
         int interval = 2000;
+        int minInterval = RttEstimator.DEFAULT_MIN_TIMEOUT;
+        int maxInterval = RttEstimator.DEFAULT_MAX_TIMEOUT;
         int blksize = -1;
         long tsize = -1;
+        int windowsize = -1;
+        int eventLoops = Runtime.getRuntime().availableProcessors();
+        int listeners = 1;
+        int admissionWorkers = 0;
+        ThreadFactory sessionThreads = null;
+        int maxPending = Admission.DEFAULT_MAX_PENDING;
+        int maxSessions = 0;
+        long maxInFlight = 0;
+        long cacheSize = 0;
+        InetSocketAddress multicastGroup = null;
+        long syncInterval = WriteBehind.SYNC_NEVER;
+        InetSocketAddress metricsAddress = null;
+        long rateLimit = 0;
+        long clientRateLimit = 0;
+        Map<String, Long> classRateLimits = new LinkedHashMap<String, Long>();
 
         try {
             CommandLineParser parser = new GnuParser();
@@ -99,17 +201,28 @@ public class Main {
             }
 
             // Parse timeout interval to retransmissions
-            if (line.hasOption('t')) {
-                interval = Integer.parseInt(line.getOptionValue('t'));
+            if (line.hasOption('i')) {
+                interval = Integer.parseInt(line.getOptionValue('i'));
                 if (interval <= 0 || interval > 255000) {
                     throw new ParseException("Invalid timeout interval to retransmissions");
                 }
             }
 
+            // Parse bounds of the adaptive timeout to retransmissions
+            if (line.hasOption('n')) {
+                minInterval = Integer.parseInt(line.getOptionValue('n'));
+            }
+            if (line.hasOption('x')) {
+                maxInterval = Integer.parseInt(line.getOptionValue('x'));
+            }
+            if (minInterval <= 0 || maxInterval < minInterval) {
+                throw new ParseException("Invalid bounds of timeout interval to retransmissions");
+            }
+
             // Parse maximum block size allowed
             if (line.hasOption('b')) {
                 blksize = Integer.parseInt(line.getOptionValue('b'));
-                if (blksize < 0) {
+                if (blksize < TFTPSocket.MIN_BLOCK_SIZE || blksize > TFTPSocket.MAX_BLOCK_SIZE) {
                     throw new ParseException("Invalid block size");
                 }
             }
@@ -122,6 +235,162 @@ public class Main {
                 }
             }
 
+            // Parse maximum window size allowed
+            if (line.hasOption('w')) {
+                windowsize = Integer.parseInt(line.getOptionValue('w'));
+                if (windowsize < 1 || windowsize > 65535) {
+                    throw new ParseException("Invalid window size");
+                }
+            }
+
+            // Parse number of event loops
+            if (line.hasOption('e')) {
+                eventLoops = Integer.parseInt(line.getOptionValue('e'));
+                if (eventLoops <= 0) {
+                    throw new ParseException("Invalid number of event loops");
+                }
+            }
+
+            // Parse number of listening sockets
+            if (line.hasOption('L')) {
+                listeners = Integer.parseInt(line.getOptionValue('L'));
+                if (listeners <= 0) {
+                    throw new ParseException("Invalid number of listeners");
+                }
+            }
+
+            // Parse number of admission workers
+            if (line.hasOption('a')) {
+                admissionWorkers = Integer.parseInt(line.getOptionValue('a'));
+                if (admissionWorkers <= 0) {
+                    throw new ParseException("Invalid number of admission workers");
+                }
+            }
+
+            // Parse how sessions are run
+            if (line.hasOption('t')) {
+                String threads = line.getOptionValue('t').toLowerCase();
+                if (threads.equals("virtual")) {
+                    sessionThreads = Thread.ofVirtual().name("sstftp-session-", 0).factory();
+                } else if (threads.equals("platform")) {
+                    sessionThreads = Thread.ofPlatform().name("sstftp-session-", 0).daemon().factory();
+                } else if (!threads.equals("loop")) {
+                    throw new ParseException("Invalid session threads");
+                }
+            }
+
+            // Parse admission limits
+            if (line.hasOption('Q')) {
+                maxPending = Integer.parseInt(line.getOptionValue('Q'));
+                if (maxPending < 0) {
+                    throw new ParseException("Invalid number of pending requests");
+                }
+            }
+            if (line.hasOption('S')) {
+                maxSessions = Integer.parseInt(line.getOptionValue('S'));
+                if (maxSessions < 0) {
+                    throw new ParseException("Invalid number of sessions");
+                }
+            }
+            if (line.hasOption('I')) {
+                maxInFlight = parseBytes(line.getOptionValue('I'), "Invalid in-flight limit");
+            }
+
+            // Parse size of the file cache
+            if (line.hasOption('c')) {
+                cacheSize = Long.parseLong(line.getOptionValue('c'));
+                if (cacheSize < 0) {
+                    throw new ParseException("Invalid cache size");
+                }
+            }
+
+            // Parse multicast group
+            if (line.hasOption('g')) {
+                String value = line.getOptionValue('g');
+                int multicastPort = 1758; // tftp-mcast
+                int colon = value.lastIndexOf(':');
+                if (colon != -1 && value.indexOf(':') == colon) {
+                    multicastPort = Integer.parseInt(value.substring(colon + 1));
+                    value = value.substring(0, colon);
+                }
+
+                InetAddress address;
+                try {
+                    address = InetAddress.getByName(value);
+                } catch (UnknownHostException e) {
+                    throw new ParseException("Invalid multicast group");
+                }
+                if (!address.isMulticastAddress() || multicastPort <= 0 || multicastPort > 65535) {
+                    throw new ParseException("Invalid multicast group");
+                }
+                multicastGroup = new InetSocketAddress(address, multicastPort);
+            }
+
+            // Parse fsync policy
+            if (line.hasOption('f')) {
+                String value = line.getOptionValue('f').toLowerCase();
+                if (value.equals("never")) {
+                    syncInterval = WriteBehind.SYNC_NEVER;
+                } else if (value.equals("file")) {
+                    syncInterval = WriteBehind.SYNC_FILE;
+                } else if (value.equals("group")) {
+                    syncInterval = WriteBehind.SYNC_GROUP;
+                } else {
+                    long megabytes;
+                    try {
+                        megabytes = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        throw new ParseException("Invalid fsync policy");
+                    }
+                    if (megabytes <= 0) {
+                        throw new ParseException("Invalid fsync policy");
+                    }
+                    syncInterval = megabytes * 1024 * 1024;
+                }
+            }
+
+            // Parse rate limits
+            if (line.hasOption('l')) {
+                rateLimit = parseRate(line.getOptionValue('l'));
+            }
+            if (line.hasOption('u')) {
+                clientRateLimit = parseRate(line.getOptionValue('u'));
+            }
+            if (line.hasOption('k')) {
+                for (String value : line.getOptionValue('k').split(",")) {
+                    int equals = value.lastIndexOf('=');
+                    if (equals <= 0) {
+                        throw new ParseException("Invalid file class rate limit");
+                    }
+                    classRateLimits.put(value.substring(0, equals), parseRate(value.substring(equals + 1)));
+                }
+            }
+
+            // Parse metrics endpoint
+            if (line.hasOption('m')) {
+                String value = line.getOptionValue('m');
+                String host = "127.0.0.1";
+                int colon = value.lastIndexOf(':');
+                if (colon != -1) {
+                    host = value.substring(0, colon);
+                    value = value.substring(colon + 1);
+                }
+
+                int metricsPort;
+                try {
+                    metricsPort = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    throw new ParseException("Invalid metrics port");
+                }
+                if (metricsPort < 0 || metricsPort > 65535) {
+                    throw new ParseException("Invalid metrics port");
+                }
+                metricsAddress = new InetSocketAddress(host, metricsPort);
+                if (metricsAddress.isUnresolved()) {
+                    throw new ParseException("Invalid metrics address");
+                }
+            }
+
             // Parse log level
             logger.setLevel(Level.ALL); // Default log level
             if (line.hasOption('v')) {
@@ -152,6 +421,71 @@ public class Main {
             System.exit(1);
         }
 
-        new TFTPServer(port, localDir, retries, interval, blksize, tsize);
+        TFTPServer server = new TFTPServer(port, localDir, retries, interval, minInterval, maxInterval, blksize, tsize,
+                windowsize, eventLoops, listeners, admissionWorkers);
+        if (cacheSize > 0) {
+            server.setFileCache(new FileCache(cacheSize * 1024 * 1024));
+        }
+        server.setMulticastGroup(multicastGroup);
+        server.setSyncInterval(syncInterval);
+        server.setSessionThreads(sessionThreads);
+        server.setMaxPendingRequests(maxPending);
+        server.setMaxSessions(maxSessions);
+        server.setMaxInFlightBytes(maxInFlight);
+
+        RateLimiter rateLimiter = server.getRateLimiter();
+        rateLimiter.setGlobalRate(rateLimit);
+        rateLimiter.setClientRate(clientRateLimit);
+        for (Map.Entry<String, Long> entry : classRateLimits.entrySet()) {
+            rateLimiter.setClassRate(entry.getKey(), entry.getValue());
+        }
+
+        // Requests are served once every limit is in place
+        server.start();
+
+        // Metrics and rate limits are always published through JMX
+        try {
+            server.getMetrics().register();
+            rateLimiter.register();
+        } catch (JMException e) {
+            logger.warning("Cannot register MBeans: " + e.getMessage());
+        }
+        if (metricsAddress != null) {
+            MetricsEndpoint endpoint = new MetricsEndpoint(metricsAddress, server.getMetrics());
+            endpoint.start();
+            logger.info("Metrics served on http://" + metricsAddress.getHostString() + ":"
+                    + endpoint.getAddress().getPort() + "/metrics");
+        }
+    }
+
+    // Bytes per second, with an optional k, m or g (binary) suffix
+    private static long parseRate(String value) throws ParseException {
+        return parseBytes(value, "Invalid rate limit");
+    }
+
+    // Byte count with an optional k, m or g (binary) suffix
+    private static long parseBytes(String value, String error) throws ParseException {
+        long unit = 1;
+        value = value.trim().toLowerCase();
+        if (value.endsWith("k")) {
+            unit = 1024;
+        } else if (value.endsWith("m")) {
+            unit = 1024 * 1024;
+        } else if (value.endsWith("g")) {
+            unit = 1024 * 1024 * 1024;
+        }
+        if (unit != 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+
+        try {
+            long bytes = Long.parseLong(value) * unit;
+            if (bytes < 0) {
+                throw new ParseException(error);
+            }
+            return bytes;
+        } catch (NumberFormatException e) {
+            throw new ParseException(error);
+        }
     }
 }
@@ -0,0 +1,341 @@
+//=============================================================================
+// Brief     : TFTP Server Multicast Transfer (RFC 2090)
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import pt.cguimaraes.sstftp.io.NetAsciiIndex;
+import pt.cguimaraes.sstftp.io.NetAsciiReader;
+import pt.cguimaraes.sstftp.message.AckView;
+import pt.cguimaraes.sstftp.message.DataView;
+import pt.cguimaraes.sstftp.message.ErrorView;
+import pt.cguimaraes.sstftp.message.OptionAcknowledgeMessage;
+import pt.cguimaraes.sstftp.message.OptionAcknowledgeView;
+import pt.cguimaraes.sstftp.message.RequestView;
+import pt.cguimaraes.sstftp.socket.EventLoop;
+import pt.cguimaraes.sstftp.socket.TFTPMessageListener;
+import pt.cguimaraes.sstftp.socket.TFTPSocket;
+
+// Sends one file to every client that asked for it with the multicast
+// option. The first client is the master client: it acknowledges the
+// blocks and the others only listen to the group. When the master client
+// is done (or gone) the next one takes over and asks for the blocks it
+// missed, so late joiners get the beginning of the file at the end. A
+// single client left is served by unicast.
+class MulticastTransfer implements Runnable, TFTPMessageListener {
+
+    private TFTPServer server;
+    private String key;
+    private TFTPSocket socket;
+    private EventLoop loop;
+    private InetSocketAddress group;
+
+    private ByteBuffer content;
+    private long length;
+    private int bSize;
+    private int lastBlock;
+
+    // Netascii transfers: blocks are converted as they are sent, the index
+    // locates the ones asked again out of order
+    private NetAsciiReader text;
+    private ByteBuffer converted;
+
+    // Clients in order of arrival, the first one is the master client
+    private LinkedList<Client> clients = new LinkedList<Client>();
+
+    // Clients that asked to join, handed over to the event loop
+    private List<Client> joining = new ArrayList<Client>();
+
+    // Block in flight
+    private int sentBlock;
+
+    // Block held back by the rate limits
+    private Pacer pacer;
+    private int pacedBlock;
+
+    MulticastTransfer(TFTPServer server, String key, InetSocketAddress group, ByteBuffer content,
+            NetAsciiIndex index, int bSize, RateLimiter.Limits limits, EventLoop loop) throws IOException {
+        this.server = server;
+        this.key = key;
+        this.group = group;
+        this.content = content;
+        this.length = content.remaining();
+        this.bSize = bSize;
+        if (index != null) {
+            this.text = new NetAsciiReader(content, index);
+            this.converted = ByteBuffer.allocate(bSize);
+            this.length = index.getLength();
+        }
+        this.lastBlock = (int) (length / bSize) + 1;
+        this.loop = loop;
+        this.pacer = new Pacer(limits, loop, new Runnable() {
+            public void run() {
+                sendBlock(pacedBlock);
+            }
+        });
+
+        socket = new TFTPSocket(this);
+        socket.setMetrics(server.getMetrics().getTraffic());
+        socket.bind(InetAddress.getByName("0.0.0.0"), 0);
+        socket.setRetries(server.getRetries());
+        socket.setTimeoutBounds(server.getMinInterval(), server.getMaxInterval());
+        socket.setTimeout(server.getInterval());
+        socket.setBlockSize(bSize);
+        socket.register(loop);
+    }
+
+    // A client asked for the file: answered on the event loop. Options are
+    // the ones negotiated for the client, acknowledged with the group.
+    void join(InetSocketAddress address, HashMap<String, String> options) {
+        synchronized (joining) {
+            joining.add(new Client(address, options));
+        }
+        loop.execute(this);
+    }
+
+    // No client is taking part or about to (must be called on the event loop)
+    boolean isIdle() {
+        synchronized (joining) {
+            return clients.isEmpty() && joining.isEmpty();
+        }
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    InetSocketAddress getGroup() {
+        return group;
+    }
+
+    // Accept the clients that asked to join
+    public void run() {
+        List<Client> joined;
+        synchronized (joining) {
+            joined = new ArrayList<Client>(joining);
+            joining.clear();
+        }
+
+        for (Client client : joined) {
+            // A retransmitted request means the OACK was lost
+            Client known = find(client.address);
+            if (known != null) {
+                sendOptionAcknowledge(known, known == clients.peekFirst());
+                continue;
+            }
+
+            Logger.getGlobal().info("Client " + client.address + " joined multicast transfer to " + group);
+            clients.add(client);
+            if (clients.size() == 1) {
+                promote(client);
+            } else {
+                sendOptionAcknowledge(client, false);
+            }
+        }
+
+        updateGroup();
+    }
+
+    public void onAck(AckView ack) {
+        Client client = find(ack.getSource());
+        if (client == null) {
+            return;
+        }
+
+        int block = ack.getBlockNumber();
+        boolean master = client == clients.peekFirst();
+
+        // The client has the whole file
+        if (block == lastBlock) {
+            clients.remove(client);
+            if (master) {
+                nextMaster();
+            } else {
+                updateGroup();
+            }
+            return;
+        }
+
+        // Only the master client drives the transfer
+        if (!master) {
+            return;
+        }
+
+        // Duplicate acknowledge: the requested block is already in flight
+        int next = (block + 1) & 0xFFFF;
+        if (socket.getInFlight() > 0 && sentBlock == next) {
+            return;
+        }
+
+        socket.rewind();
+        sendBlock(next);
+    }
+
+    public void onError(ErrorView error) {
+        Client client = find(error.getSource());
+        if (client == null) {
+            return;
+        }
+
+        Logger.getGlobal().info("Client " + client.address + " left multicast transfer: " + error.getErrorMsg());
+        boolean master = client == clients.peekFirst();
+        clients.remove(client);
+        if (master) {
+            nextMaster();
+        } else {
+            updateGroup();
+        }
+    }
+
+    // The master client stopped answering
+    public void onTimeout() {
+        Client client = clients.pollFirst();
+        if (client != null) {
+            Logger.getGlobal().warning("Master client " + client.address + " timed out");
+        }
+        nextMaster();
+    }
+
+    public void onData(DataView data) {
+    }
+
+    public void onRequest(RequestView request) {
+    }
+
+    public void onOack(OptionAcknowledgeView oack) {
+    }
+
+    private void sendBlock(int block) {
+        if (block < 1 || block > lastBlock) {
+            return;
+        }
+
+        // Only the latest block asked for is sent once the limits allow it
+        if (!pacer.mayPass()) {
+            pacedBlock = block;
+            return;
+        }
+
+        long position = (long) (block - 1) * bSize;
+        sentBlock = block;
+        if (text != null) {
+            converted.clear();
+            text.read(position, converted);
+            converted.flip();
+            pacer.charge(converted.remaining() + TFTPSocket.DATA_HEADER);
+            socket.sendData(block, converted);
+            return;
+        }
+
+        int n = (int) Math.min(bSize, length - position);
+        content.limit((int) position + n);
+        content.position((int) position);
+        pacer.charge(n + TFTPSocket.DATA_HEADER);
+        socket.sendData(block, content);
+    }
+
+    // Hand the transfer over to the next client, or end it
+    private void nextMaster() {
+        Client client = clients.peekFirst();
+        if (client != null) {
+            promote(client);
+            updateGroup();
+            return;
+        }
+
+        if (server.endMulticast(this)) {
+            Logger.getGlobal().info("Multicast transfer to " + group + " complete");
+            socket.close();
+            pacer.close();
+        }
+    }
+
+    // The master client answers with the last block it has in order
+    private void promote(Client client) {
+        socket.rewind();
+        socket.setRemote(client.address);
+        if (clients.size() == 1) {
+            // First client: data follows the route towards it
+            try {
+                socket.setMulticast(TFTPSocket.interfaceTowards(client.address.getAddress()));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        socket.send(buildOptionAcknowledge(client, true));
+    }
+
+    // Multicast only pays off with more than one client
+    private void updateGroup() {
+        socket.setGroup(clients.size() > 1 ? group : null);
+    }
+
+    private void sendOptionAcknowledge(Client client, boolean master) {
+        if (master) {
+            socket.send(buildOptionAcknowledge(client, true));
+        } else {
+            socket.sendTo(buildOptionAcknowledge(client, false), client.address);
+        }
+    }
+
+    private OptionAcknowledgeMessage buildOptionAcknowledge(Client client, boolean master) {
+        HashMap<String, String> options = new HashMap<String, String>(client.options);
+        options.put("multicast", group.getAddress().getHostAddress() + "," + group.getPort() + "," + (master ? 1 : 0));
+        return new OptionAcknowledgeMessage(options);
+    }
+
+    private Client find(InetSocketAddress address) {
+        Iterator<Client> it = clients.iterator();
+        while (it.hasNext()) {
+            Client client = it.next();
+            if (client.address.equals(address)) {
+                return client;
+            }
+        }
+        return null;
+    }
+
+    // Client taking part in the transfer
+    private static class Client {
+        final InetSocketAddress address;
+        final HashMap<String, String> options;
+
+        Client(InetSocketAddress address, HashMap<String, String> options) {
+            this.address = address;
+            this.options = options;
+        }
+    }
+}
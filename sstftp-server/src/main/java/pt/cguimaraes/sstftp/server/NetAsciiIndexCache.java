@@ -0,0 +1,126 @@
+//=============================================================================
+// Brief     : TFTP Server Netascii Index Cache
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import pt.cguimaraes.sstftp.io.NetAsciiIndex;
+
+// Netascii indexes of the text files served lately, so the converted size
+// of a file is worked out once and not on every request. Entries are keyed
+// by canonical path and rebuilt as soon as the modification time or size
+// changes; the least recently used ones are dropped past the capacity.
+public class NetAsciiIndexCache {
+
+    private final int capacity;
+
+    // Access ordered, so the eldest entry is the least recently used
+    private LinkedHashMap<String, Entry> entries;
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+
+    public NetAsciiIndexCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > NetAsciiIndexCache.this.capacity;
+            }
+        };
+    }
+
+    // Index of a file, scanning content if given (positioned at the
+    // beginning of the file) instead of reading the file
+    public NetAsciiIndex get(File file, ByteBuffer content) throws IOException {
+        String path = file.getCanonicalPath();
+        long modified = file.lastModified();
+        long size = file.length();
+
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(path);
+        }
+        if (entry != null && entry.modified == modified && entry.size == size) {
+            hits.incrementAndGet();
+            return entry.index;
+        }
+
+        // Concurrent misses may scan the same file, the last one is kept
+        misses.incrementAndGet();
+        NetAsciiIndex index;
+        if (content != null) {
+            index = NetAsciiIndex.build(content);
+        } else {
+            try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                index = NetAsciiIndex.build(in.getChannel());
+            }
+        }
+
+        synchronized (entries) {
+            entries.put(path, new Entry(modified, size, index));
+        }
+        return index;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    // Index of a file as it was when looked up
+    private static class Entry {
+        final long modified;
+        final long size;
+        final NetAsciiIndex index;
+
+        Entry(long modified, long size, NetAsciiIndex index) {
+            this.modified = modified;
+            this.size = size;
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+//=============================================================================
+// Brief     : TFTP Server Transfer Pacer
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.server;
+
+import java.util.concurrent.TimeUnit;
+
+import pt.cguimaraes.sstftp.socket.SocketExecutor;
+import pt.cguimaraes.sstftp.socket.TimingWheel;
+
+// Holds back the data blocks of a transfer that would exceed its rate
+// limits, and resumes the transfer on its event loop (or thread) once they
+// allow the next block. Each block is charged the bytes actually sent, once
+// sent, and the wait it leaves in the buckets holds back the next one.
+// Blocks are spread over the timer ticks instead of leaving in window sized
+// bursts. Used only from the session's executor.
+final class Pacer extends TimingWheel.Timeout {
+
+    // Waits shorter than a tick are not worth a timer
+    private final static long SLACK = TimeUnit.MILLISECONDS.toNanos(TimingWheel.DEFAULT_TICK);
+
+    private RateLimiter.Limits limits;
+    private SocketExecutor executor;
+    private Runnable resume;
+
+    Pacer(RateLimiter.Limits limits, SocketExecutor executor, Runnable resume) {
+        this.limits = limits;
+        this.executor = executor;
+        this.resume = resume;
+    }
+
+    // True if the next block may be sent now. Otherwise resume runs when it
+    // may be sent.
+    boolean mayPass() {
+        return !isScheduled();
+    }
+
+    // Charge a block just sent, holding back the next one while the limits
+    // are exceeded
+    void charge(int bytes) {
+        long wait = limits.take(bytes);
+        if (wait < SLACK) {
+            return;
+        }
+
+        limits.paced();
+        executor.schedule(this, TimeUnit.NANOSECONDS.toMillis(wait));
+    }
+
+    public void expire() {
+        resume.run();
+    }
+
+    void close() {
+        executor.cancel(this);
+        limits.close();
+    }
+}
@@ -0,0 +1,239 @@
+//=============================================================================
+// Brief     : TFTP Server Rate Limiter
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.server;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import pt.cguimaraes.sstftp.metrics.Counter;
+import pt.cguimaraes.sstftp.socket.TimingWheel;
+import pt.cguimaraes.sstftp.socket.TokenBucket;
+
+// Token buckets capping the data sent by the server: one for the whole
+// server, one per client address (shared by its transfers) and one per
+// file class (files whose name matches a glob pattern, e.g. "*.img"). A
+// block is sent once every bucket it goes through allows it.
+public class RateLimiter implements RateLimiterMXBean {
+
+    public final static String OBJECT_NAME = "pt.cguimaraes.sstftp:type=RateLimiter";
+
+    // Buckets hold one timer tick of tokens: blocks are paced on the event
+    // loop timers, so a finer burst would only lower the rate
+    private final static int BURSTS_PER_SECOND = 1000 / TimingWheel.DEFAULT_TICK;
+
+    private TokenBucket global = new TokenBucket(0, 0);
+
+    private volatile long clientRate;
+    private Map<InetAddress, ClientBucket> clients = new HashMap<InetAddress, ClientBucket>();
+
+    private CopyOnWriteArrayList<FileClass> classes = new CopyOnWriteArrayList<FileClass>();
+
+    private Counter paced = new Counter();
+
+    // Buckets of one transfer, to client (null for multicast) of the file
+    // named fileName (without its directory)
+    Limits open(InetAddress client, String fileName) {
+        ClientBucket clientBucket = null;
+        if (client != null) {
+            synchronized (clients) {
+                clientBucket = clients.get(client);
+                if (clientBucket == null) {
+                    clientBucket = new ClientBucket(clientRate);
+                    clients.put(client, clientBucket);
+                }
+                ++clientBucket.transfers;
+            }
+        }
+
+        return new Limits(client, clientBucket, classOf(fileName));
+    }
+
+    private TokenBucket classOf(String fileName) {
+        for (FileClass fileClass : classes) {
+            try {
+                if (fileClass.matcher.matches(Paths.get(fileName))) {
+                    return fileClass.bucket;
+                }
+            } catch (InvalidPathException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private void release(InetAddress client) {
+        synchronized (clients) {
+            ClientBucket bucket = clients.get(client);
+            if (bucket != null && --bucket.transfers == 0) {
+                clients.remove(client);
+            }
+        }
+    }
+
+    // Publish on the platform MBean server
+    public void register() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+    }
+
+    public long getGlobalRate() {
+        return global.getRate();
+    }
+
+    public void setGlobalRate(long rate) {
+        global.setRate(Math.max(rate, 0), burstOf(rate));
+    }
+
+    public long getClientRate() {
+        return clientRate;
+    }
+
+    // Applies to the clients already transferring too
+    public void setClientRate(long rate) {
+        synchronized (clients) {
+            clientRate = Math.max(rate, 0);
+            for (ClientBucket bucket : clients.values()) {
+                bucket.setRate(clientRate, burstOf(clientRate));
+            }
+        }
+    }
+
+    public Map<String, Long> getClassRates() {
+        Map<String, Long> rates = new LinkedHashMap<String, Long>();
+        for (FileClass fileClass : classes) {
+            rates.put(fileClass.pattern, fileClass.bucket.getRate());
+        }
+        return rates;
+    }
+
+    // A new class applies to the transfers started after it
+    public synchronized void setClassRate(String pattern, long rate) {
+        rate = Math.max(rate, 0);
+        for (FileClass fileClass : classes) {
+            if (fileClass.pattern.equals(pattern)) {
+                fileClass.bucket.setRate(rate, burstOf(rate));
+                return;
+            }
+        }
+
+        classes.add(new FileClass(pattern, rate));
+    }
+
+    public synchronized void removeClass(String pattern) {
+        for (FileClass fileClass : classes) {
+            if (fileClass.pattern.equals(pattern)) {
+                fileClass.bucket.setRate(0, 0);
+                classes.remove(fileClass);
+                return;
+            }
+        }
+    }
+
+    public int getClientCount() {
+        synchronized (clients) {
+            return clients.size();
+        }
+    }
+
+    public long getPacedBlocks() {
+        return paced.get();
+    }
+
+    private static long burstOf(long rate) {
+        return Math.max(rate, 0) / BURSTS_PER_SECOND;
+    }
+
+    // Rate limits of one transfer
+    final class Limits {
+
+        private InetAddress client;
+        private TokenBucket clientBucket;
+        private TokenBucket classBucket;
+
+        private Limits(InetAddress client, TokenBucket clientBucket, TokenBucket classBucket) {
+            this.client = client;
+            this.clientBucket = clientBucket;
+            this.classBucket = classBucket;
+        }
+
+        // Charge a packet and return the nanoseconds to wait before sending it
+        long take(int bytes) {
+            long now = System.nanoTime();
+            long wait = global.take(bytes, now);
+            if (clientBucket != null) {
+                wait = Math.max(wait, clientBucket.take(bytes, now));
+            }
+            if (classBucket != null) {
+                wait = Math.max(wait, classBucket.take(bytes, now));
+            }
+            return wait;
+        }
+
+        void paced() {
+            paced.increment();
+        }
+
+        void close() {
+            if (client != null) {
+                release(client);
+                client = null;
+            }
+        }
+    }
+
+    private static class ClientBucket extends TokenBucket {
+
+        // Transfers of the client running, guarded by the clients map
+        private int transfers;
+
+        ClientBucket(long rate) {
+            super(rate, burstOf(rate));
+        }
+    }
+
+    private static class FileClass {
+
+        private String pattern;
+        private PathMatcher matcher;
+        private TokenBucket bucket;
+
+        FileClass(String pattern, long rate) {
+            this.pattern = pattern;
+            this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+            this.bucket = new TokenBucket(rate, burstOf(rate));
+        }
+    }
+}
@@ -0,0 +1,55 @@
+//=============================================================================
+// Brief     : TFTP Server Rate Limiter Management Interface
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.server;
+
+import java.util.Map;
+
+// Egress rate limits, changed at runtime through JMX. Rates are in bytes
+// per second, 0 for no limit.
+public interface RateLimiterMXBean {
+
+    long getGlobalRate();
+
+    void setGlobalRate(long rate);
+
+    long getClientRate();
+
+    void setClientRate(long rate);
+
+    // Rate of each file class, by glob pattern, in matching order
+    Map<String, Long> getClassRates();
+
+    // Add a file class, or change the rate of an existing one
+    void setClassRate(String pattern, long rate);
+
+    void removeClass(String pattern);
+
+    // Clients with transfers running
+    int getClientCount();
+
+    // Data blocks delayed to keep within the limits
+    long getPacedBlocks();
+}
@@ -0,0 +1,342 @@
+//=============================================================================
+// Brief     : TFTP Server Metrics
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import pt.cguimaraes.sstftp.message.TFTPMessage;
+import pt.cguimaraes.sstftp.metrics.Counter;
+import pt.cguimaraes.sstftp.metrics.Histogram;
+import pt.cguimaraes.sstftp.metrics.SocketMetrics;
+
+// Counters and latency histograms of a server. Sockets count their own
+// traffic (see getTraffic()), sessions add requests and transfer latencies.
+// Everything is recorded with striped counters and lock-free histograms,
+// and read through JMX or as Prometheus text (see MetricsEndpoint).
+public class ServerMetrics implements ServerMetricsMXBean {
+
+    public final static String OBJECT_NAME = "pt.cguimaraes.sstftp:type=Server";
+
+    private final static double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private TFTPServer server;
+    private SocketMetrics traffic = new SocketMetrics();
+
+    private Counter readRequests = new Counter();
+    private Counter writeRequests = new Counter();
+    private Counter duplicateRequests = new Counter();
+    private Counter completed = new Counter();
+
+    // Queued requests dropped as retransmitted or stale, and requests refused
+    // with a busy error because the queue was full
+    private Counter shedRequests = new Counter();
+    private Counter refusedRequests = new Counter();
+
+    // From the request to the first block sent (RRQ) or received (WRQ),
+    // and to the end of the transfer (microseconds)
+    private Histogram firstBlock = new Histogram();
+    private Histogram transfer = new Histogram();
+
+    // Time requests wait for an admission worker, and take to be admitted
+    // (microseconds)
+    private Histogram queueWait = new Histogram();
+    private Histogram admission = new Histogram();
+
+    ServerMetrics(TFTPServer server) {
+        this.server = server;
+    }
+
+    // Shared by every socket of the server
+    public SocketMetrics getTraffic() {
+        return traffic;
+    }
+
+    void request(int opcode) {
+        if (opcode == TFTPMessage.RRQ) {
+            readRequests.increment();
+        } else {
+            writeRequests.increment();
+        }
+    }
+
+    void duplicateRequest() {
+        duplicateRequests.increment();
+        traffic.duplicate();
+    }
+
+    void shedRequest() {
+        shedRequests.increment();
+    }
+
+    void refusedRequest() {
+        refusedRequests.increment();
+    }
+
+    void firstBlock(long startedAt) {
+        firstBlock.record((System.nanoTime() - startedAt) / 1000);
+    }
+
+    void completed(long startedAt) {
+        completed.increment();
+        transfer.record((System.nanoTime() - startedAt) / 1000);
+    }
+
+    void queued(long queuedAt, long dequeuedAt) {
+        queueWait.record((dequeuedAt - queuedAt) / 1000);
+    }
+
+    void admitted(long startedAt) {
+        admission.record((System.nanoTime() - startedAt) / 1000);
+    }
+
+    // Publish on the platform MBean server
+    public void register() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+    }
+
+    public int getActiveSessions() {
+        return server.getSessionCount();
+    }
+
+    public long getReadRequests() {
+        return readRequests.get();
+    }
+
+    public long getWriteRequests() {
+        return writeRequests.get();
+    }
+
+    public long getDuplicateRequests() {
+        return duplicateRequests.get();
+    }
+
+    public long getCompletedTransfers() {
+        return completed.get();
+    }
+
+    public long getShedRequests() {
+        return shedRequests.get();
+    }
+
+    public long getRefusedRequests() {
+        return refusedRequests.get();
+    }
+
+    public long getInFlightBytes() {
+        return server.getAdmission().getInFlight();
+    }
+
+    public long getPacketsSent() {
+        return traffic.getPacketsSent();
+    }
+
+    public long getBytesSent() {
+        return traffic.getBytesSent();
+    }
+
+    public long getPacketsReceived() {
+        return traffic.getPacketsReceived();
+    }
+
+    public long getBytesReceived() {
+        return traffic.getBytesReceived();
+    }
+
+    public long getRetransmits() {
+        return traffic.getRetransmits();
+    }
+
+    public long getTimeouts() {
+        return traffic.getTimeouts();
+    }
+
+    public long getDuplicates() {
+        return traffic.getDuplicates();
+    }
+
+    public Map<String, Long> getErrorsSent() {
+        Map<String, Long> errors = new LinkedHashMap<String, Long>();
+        for (int code = 0; code <= SocketMetrics.ERROR_CODES; ++code) {
+            errors.put(errorLabel(code), traffic.getErrorsSent(code));
+        }
+        return errors;
+    }
+
+    public Map<String, Long> getErrorsReceived() {
+        Map<String, Long> errors = new LinkedHashMap<String, Long>();
+        for (int code = 0; code <= SocketMetrics.ERROR_CODES; ++code) {
+            errors.put(errorLabel(code), traffic.getErrorsReceived(code));
+        }
+        return errors;
+    }
+
+    public long getRttMedian() {
+        return traffic.getRtt().getQuantile(0.5);
+    }
+
+    public long getRtt99thPercentile() {
+        return traffic.getRtt().getQuantile(0.99);
+    }
+
+    public long getFirstBlockMedian() {
+        return firstBlock.getQuantile(0.5);
+    }
+
+    public long getFirstBlock99thPercentile() {
+        return firstBlock.getQuantile(0.99);
+    }
+
+    public long getTransferMedian() {
+        return transfer.getQuantile(0.5);
+    }
+
+    public long getTransfer99thPercentile() {
+        return transfer.getQuantile(0.99);
+    }
+
+    public int getAdmissionQueueDepth() {
+        return server.getAdmission().getDepth();
+    }
+
+    public long getQueueWaitMedian() {
+        return queueWait.getQuantile(0.5);
+    }
+
+    public long getQueueWait99thPercentile() {
+        return queueWait.getQuantile(0.99);
+    }
+
+    public long getAdmissionMedian() {
+        return admission.getQuantile(0.5);
+    }
+
+    public long getAdmission99thPercentile() {
+        return admission.getQuantile(0.99);
+    }
+
+    // Prometheus text exposition format (version 0.0.4)
+    public String toText() {
+        StringBuilder out = new StringBuilder(4096);
+
+        gauge(out, "sstftp_sessions", "Sessions running", getActiveSessions());
+
+        type(out, "sstftp_requests_total", "Requests received by opcode", "counter");
+        out.append("sstftp_requests_total{opcode=\"rrq\"} ").append(getReadRequests()).append('\n');
+        out.append("sstftp_requests_total{opcode=\"wrq\"} ").append(getWriteRequests()).append('\n');
+
+        counter(out, "sstftp_duplicate_requests_total", "Retransmitted requests dropped", getDuplicateRequests());
+        counter(out, "sstftp_shed_requests_total", "Retransmitted or stale requests dropped before admission",
+                getShedRequests());
+        counter(out, "sstftp_refused_requests_total", "Requests refused with a busy error", getRefusedRequests());
+        gauge(out, "sstftp_inflight_bytes", "Window bytes reserved by the running sessions", getInFlightBytes());
+        counter(out, "sstftp_transfers_completed_total", "Transfers completed", getCompletedTransfers());
+        counter(out, "sstftp_packets_sent_total", "Packets sent, retransmissions included", getPacketsSent());
+        counter(out, "sstftp_sent_bytes_total", "Bytes sent, retransmissions included", getBytesSent());
+        counter(out, "sstftp_packets_received_total", "Packets received", getPacketsReceived());
+        counter(out, "sstftp_received_bytes_total", "Bytes received", getBytesReceived());
+        counter(out, "sstftp_retransmits_total", "Packets sent again", getRetransmits());
+        counter(out, "sstftp_timeouts_total", "Transfers given up after the last retry", getTimeouts());
+        counter(out, "sstftp_duplicates_total", "Duplicate packets dropped", getDuplicates());
+
+        type(out, "sstftp_errors_sent_total", "Error packets sent by code", "counter");
+        for (int code = 0; code <= SocketMetrics.ERROR_CODES; ++code) {
+            out.append("sstftp_errors_sent_total{code=\"").append(errorLabel(code)).append("\"} ")
+                    .append(traffic.getErrorsSent(code)).append('\n');
+        }
+        type(out, "sstftp_errors_received_total", "Error packets received by code", "counter");
+        for (int code = 0; code <= SocketMetrics.ERROR_CODES; ++code) {
+            out.append("sstftp_errors_received_total{code=\"").append(errorLabel(code)).append("\"} ")
+                    .append(traffic.getErrorsReceived(code)).append('\n');
+        }
+
+        summary(out, "sstftp_rtt_seconds", "Round-trip time of timed packets", traffic.getRtt());
+        summary(out, "sstftp_first_block_seconds", "Time from request to first block", firstBlock);
+        summary(out, "sstftp_transfer_seconds", "Time from request to end of transfer", transfer);
+
+        gauge(out, "sstftp_admission_queue_depth", "Requests waiting for an admission worker",
+                getAdmissionQueueDepth());
+        summary(out, "sstftp_admission_queue_wait_seconds", "Time requests wait for an admission worker",
+                queueWait);
+        summary(out, "sstftp_admission_seconds", "Time to open the file and negotiate the options", admission);
+
+        FileCache cache = server.getFileCache();
+        if (cache != null) {
+            counter(out, "sstftp_cache_hits_total", "File cache hits", cache.getHits());
+            counter(out, "sstftp_cache_misses_total", "File cache misses", cache.getMisses());
+            gauge(out, "sstftp_cache_bytes", "Bytes held by the file cache", cache.getSize());
+        }
+
+        counter(out, "sstftp_paced_blocks_total", "Data blocks delayed by the rate limits",
+                server.getRateLimiter().getPacedBlocks());
+
+        GroupCommit group = server.getGroupCommit();
+        counter(out, "sstftp_group_commits_total", "Group commit cycles", group.getCycles());
+        counter(out, "sstftp_group_committed_uploads_total", "Uploads made durable by group commits",
+                group.getCommits());
+
+        return out.toString();
+    }
+
+    private static String errorLabel(int code) {
+        return code < SocketMetrics.ERROR_CODES ? Integer.toString(code) : "other";
+    }
+
+    private static void type(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        type(out, name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        type(out, name, help, "gauge");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    // Microsecond histogram as a summary in seconds
+    private static void summary(StringBuilder out, String name, String help, Histogram histogram) {
+        type(out, name, help, "summary");
+        for (double q : QUANTILES) {
+            out.append(name).append("{quantile=\"").append(q).append("\"} ")
+                    .append(seconds(histogram.getQuantile(q))).append('\n');
+        }
+        out.append(name).append("_sum ").append(seconds(histogram.getSum())).append('\n');
+        out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+    }
+
+    private static String seconds(long micros) {
+        return String.format(Locale.ROOT, "%.6f", micros / 1e6);
+    }
+}
@@ -0,0 +1,92 @@
+//=============================================================================
+// Brief     : TFTP Server Metrics Management Interface
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.server;
+
+import java.util.Map;
+
+// Server metrics as seen through JMX. Counters only grow, rates are left
+// to the monitoring tool. Latencies are in microseconds.
+public interface ServerMetricsMXBean {
+
+    int getActiveSessions();
+
+    long getReadRequests();
+
+    long getWriteRequests();
+
+    long getDuplicateRequests();
+
+    long getCompletedTransfers();
+
+    // Admission control under overload
+    long getShedRequests();
+
+    long getRefusedRequests();
+
+    long getInFlightBytes();
+
+    long getPacketsSent();
+
+    long getBytesSent();
+
+    long getPacketsReceived();
+
+    long getBytesReceived();
+
+    long getRetransmits();
+
+    long getTimeouts();
+
+    long getDuplicates();
+
+    // Error packets by code
+    Map<String, Long> getErrorsSent();
+
+    Map<String, Long> getErrorsReceived();
+
+    long getRttMedian();
+
+    long getRtt99thPercentile();
+
+    long getFirstBlockMedian();
+
+    long getFirstBlock99thPercentile();
+
+    long getTransferMedian();
+
+    long getTransfer99thPercentile();
+
+    // Requests waiting for an admission worker
+    int getAdmissionQueueDepth();
+
+    long getQueueWaitMedian();
+
+    long getQueueWait99thPercentile();
+
+    long getAdmissionMedian();
+
+    long getAdmission99thPercentile();
+}
@@ -25,94 +25,177 @@
 
 package pt.cguimaraes.sstftp.server;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.lang.reflect.Method;
-import java.net.SocketException;
-import java.nio.channels.Channels;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map.Entry;
 import java.util.logging.Logger;
 
-import org.apache.commons.net.io.FromNetASCIIOutputStream;
-import org.apache.commons.net.io.ToNetASCIIInputStream;
-
+import pt.cguimaraes.sstftp.io.NetAsciiDecoder;
+import pt.cguimaraes.sstftp.io.NetAsciiEncoder;
+import pt.cguimaraes.sstftp.io.NetAsciiIndex;
+import pt.cguimaraes.sstftp.message.AckView;
 import pt.cguimaraes.sstftp.message.AcknowledgeMessage;
-import pt.cguimaraes.sstftp.message.DataMessage;
+import pt.cguimaraes.sstftp.message.DataView;
 import pt.cguimaraes.sstftp.message.ErrorMessage;
+import pt.cguimaraes.sstftp.message.ErrorView;
 import pt.cguimaraes.sstftp.message.OptionAcknowledgeMessage;
+import pt.cguimaraes.sstftp.message.OptionAcknowledgeView;
 import pt.cguimaraes.sstftp.message.ReadRequestMessage;
+import pt.cguimaraes.sstftp.message.RequestView;
 import pt.cguimaraes.sstftp.message.TFTPMessage;
 import pt.cguimaraes.sstftp.message.WriteRequestMessage;
+import pt.cguimaraes.sstftp.socket.SocketExecutor;
+import pt.cguimaraes.sstftp.socket.TFTPMessageListener;
 import pt.cguimaraes.sstftp.socket.TFTPSocket;
 
-public class ServerSession implements Runnable {
+// State of a transfer, kept compact as a server may hold many thousands of
+// them: limits are read from the server rather than copied, buffers are
+// borrowed from pools while needed, the requested file is shared with the
+// other sessions reading it and the request itself is dropped once
+// answered. Sessions live in the session table of the server only.
+public class ServerSession implements Runnable, TFTPMessageListener {
+
+    // Largest upload reserved at once, bigger ones grow as they are written
+    private final static long PREALLOCATE_MAX = 1L << 30;
 
+    private TFTPServer server;
+    private SessionKey key;
     private TFTPSocket socket;
+    private SocketExecutor executor;
 
     private int bSize;
-    private int bSizeMax;
-    private long fileSize;
-    private long tSizeMax;
-    private int opcode;
-    private String mode;
+    private short opcode;
+    private boolean netascii;
+
+    // Requested options, then the acknowledged ones until answered
     private HashMap<String, String> options;
 
+    // Files are read from the file cache or through the handle shared by
+    // every session reading the file, mapped in memory, so octet blocks go
+    // from memory straight into the send window. The region mapped is the
+    // one of content (a cached file is region 0).
+    private FileHandles.Handle handle;
+    private ByteBuffer content;
+    private int region;
+
+    // Bytes read from the file (RRQ), or received as sent (WRQ, netascii
+    // before conversion) and checked against the transfer size
+    private long position;
+
+    // Size of the file (RRQ) or transfer size announced (WRQ, -1 if not)
+    private long length;
+
+    // Upload in progress (WRQ)
     private RandomAccessFile file;
 
+    // Netascii blocks are converted through a buffer reused for the whole
+    // transfer, line ends split between blocks are kept by the transcoders
+    private ByteBuffer text;
+    private NetAsciiEncoder encoder;
+    private NetAsciiDecoder decoder;
+
+    // Uploaded blocks are written behind the session (WRQ). Acknowledges
+    // are held while the writer is behind, and the last one until the file
+    // is complete.
+    private WriteBehind writer;
+    private boolean ackHeld;
+    private boolean finishing;
+
+    // Next block to send (RRQ) or expected block (WRQ)
+    private int nextBlock = 1;
+    private int unacknowledged = 0;
+
     private boolean sentLast = false;
     private boolean initialized = true;
 
-    public ServerSession(String localDir, int retries, int interval, int bSizeMax, long tSizeMax, TFTPMessage msg)
-            throws NoSuchMethodException, SecurityException, SocketException, Exception {
-        // Initialize TFTP Socket
-        Method handler = null;
-        switch (msg.getOpcode()) {
-            case TFTPMessage.RRQ: {
-                handler = ServerSession.class.getMethod("handler_get", new Class[] { TFTPMessage.class });
-                break;
-            }
+    // Holds back blocks over the rate limits (RRQ), from the first block on
+    private Pacer pacer;
 
-            case TFTPMessage.WRQ: {
-                handler = ServerSession.class.getMethod("handler_put", new Class[] { TFTPMessage.class });
-                break;
-            }
+    // Window bytes reserved against the server in-flight limit
+    private long windowBytes;
 
-            default: {
-                throw new Exception("Invalid initial request message type");
-            }
+    // Request time, and whether the first block was timed yet
+    private long startedAt = System.nanoTime();
+    private boolean firstBlock;
+
+    public ServerSession(TFTPServer server, SessionKey key, TFTPMessage msg, final SocketExecutor executor)
+            throws IOException {
+        // Initialize TFTP Socket
+        if (msg.getOpcode() != TFTPMessage.RRQ && msg.getOpcode() != TFTPMessage.WRQ) {
+            throw new IllegalArgumentException("Invalid initial request message type");
         }
 
-        this.socket = new TFTPSocket(msg.getIp(), msg.getPort(), this, handler);
-        this.socket.setRetries(retries);
-        this.socket.setTimeout(interval);
+        this.server = server;
+        this.key = key;
+        this.socket = new TFTPSocket(key.getClient(), this);
+        this.socket.setMetrics(server.getMetrics().getTraffic());
+        this.socket.setRetries(server.getRetries());
+        this.socket.setTimeoutBounds(server.getMinInterval(), server.getMaxInterval());
+        this.socket.setTimeout(server.getInterval());
+        this.executor = executor;
 
         // Configure session
-        this.bSizeMax = bSizeMax;
+        String localDir = server.getLocalDir();
         this.bSize = 512; // Default block size
-        this.tSizeMax = tSizeMax;
-        this.fileSize = -1;
+        this.length = -1;
         try {
             switch (msg.getOpcode()) {
                 case TFTPMessage.RRQ: {
                     ReadRequestMessage msgRRQ = (ReadRequestMessage) msg;
-                    this.mode = msgRRQ.getMode();
-                    this.opcode = msgRRQ.getOpcode();
+                    this.netascii = msgRRQ.getMode().equals("netascii");
+                    this.opcode = TFTPMessage.RRQ;
                     this.options = msgRRQ.getOptions();
 
-                    file = new RandomAccessFile(localDir + msgRRQ.getFileName(), "r");
+                    // Cached files are served without opening them
+                    File path = new File(localDir + msgRRQ.getFileName());
+                    FileCache cache = server.getFileCache();
+                    if (cache != null) {
+                        content = cache.get(path);
+                    }
+
+                    if (content != null) {
+                        length = content.remaining();
+                    } else {
+                        handle = server.getFileHandles().open(path);
+                        length = handle.getLength();
+                    }
                     break;
                 }
 
                 case TFTPMessage.WRQ: {
                     WriteRequestMessage msgWRQ = (WriteRequestMessage) msg;
-                    this.mode = msgWRQ.getMode();
-                    this.opcode = msgWRQ.getOpcode();
+                    this.netascii = msgWRQ.getMode().equals("netascii");
+                    this.opcode = TFTPMessage.WRQ;
                     this.options = msgWRQ.getOptions();
 
-                    file = new RandomAccessFile(localDir + msgWRQ.getFileName(), "rw");
+                    // Written to a staged file renamed over the target once complete
+                    File target = new File(localDir + msgWRQ.getFileName());
+                    File directory = target.getAbsoluteFile().getParentFile();
+                    if (!directory.isDirectory()) {
+                        throw new FileNotFoundException(target.getPath());
+                    }
+                    File staged = File.createTempFile("." + target.getName() + ".", ".part", directory);
+                    try {
+                        file = new RandomAccessFile(staged, "rw");
+                    } catch (IOException e) {
+                        staged.delete();
+                        throw e;
+                    }
+                    writer = new WriteBehind(server, file.getChannel(), staged, target, new Runnable() {
+                        public void run() {
+                            executor.execute(new Runnable() {
+                                public void run() {
+                                    resumeAcknowledges();
+                                }
+                            });
+                        }
+                    });
                     break;
                 }
 
@@ -128,168 +211,368 @@ public class ServerSession implements Runnable {
 
             Logger.getGlobal().info("File not found");
         }
-
-        Thread t = new Thread(socket);
-        t.start();
     }
 
-    // TFTP message handler for GET action
-    public void handler_get(TFTPMessage msg) {
-        switch (msg.getOpcode()) {
-            case TFTPMessage.ACK: {
-                AcknowledgeMessage msgAck = (AcknowledgeMessage) msg;
-                handleAcknowledge(msgAck);
-                break;
-            }
+    // Attach the session to its event loop or thread and start the transfer
+    // there
+    public void start() throws IOException {
+        if (!initialized) {
+            close();
+            return;
+        }
 
-            case TFTPMessage.ERROR: {
-                ErrorMessage msgError = (ErrorMessage) msg;
-                handleError(msgError);
-                break;
-            }
+        socket.register(executor);
+        executor.execute(this);
+    }
+
+    public void onAck(AckView ack) {
+        if (opcode != TFTPMessage.RRQ) {
+            illegalOperation();
+            return;
+        }
 
-            default: {
-                ErrorMessage msgError = new ErrorMessage(ErrorMessage.ILLEGAL_TFTP_OPERATION);
-                socket.send(msgError);
+        handleAcknowledge();
+    }
 
-                Logger.getGlobal().warning("Illegal TFTP Operation");
-                System.exit(1);
-                break;
-            }
+    public void onData(DataView data) {
+        if (opcode != TFTPMessage.WRQ) {
+            illegalOperation();
+            return;
         }
+
+        handleData(data);
     }
 
-    // TFTP message handler for PUT action
-    public void handler_put(TFTPMessage msg) {
-        switch (msg.getOpcode()) {
-            case TFTPMessage.DATA: {
-                DataMessage msgData = (DataMessage) msg;
-                handleData(msgData);
-                break;
-            }
+    public void onError(ErrorView error) {
+        handleError(error);
+    }
+
+    public void onRequest(RequestView request) {
+        illegalOperation();
+    }
 
-            case TFTPMessage.ERROR: {
-                ErrorMessage msgError = (ErrorMessage) msg;
-                handleError(msgError);
-                break;
+    public void onOack(OptionAcknowledgeView oack) {
+        illegalOperation();
+    }
+
+    public void onTimeout() {
+        Logger.getGlobal().warning("Transfer timed out");
+        close();
+    }
+
+    // End the session from another thread, on its executor
+    void abort() {
+        executor.execute(new Runnable() {
+            public void run() {
+                if (socket.isOpen()) {
+                    close();
+                }
             }
+        });
+    }
 
-            default: {
-                ErrorMessage msgError = new ErrorMessage(ErrorMessage.ILLEGAL_TFTP_OPERATION);
-                socket.send(msgError);
+    // End the session and release its slot in the session table
+    void close() {
+        socket.close();
+        server.removeSession(key, this);
+        if (pacer != null) {
+            pacer.close();
+        }
 
-                Logger.getGlobal().warning("Illegal TFTP Operation");
-                System.exit(1);
-                break;
+        // The mapping itself is released once garbage collected
+        content = null;
+        if (handle != null) {
+            server.getFileHandles().close(handle);
+            handle = null;
+        }
+        if (writer != null) {
+            writer.abort();
+        }
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
+        // The upload is removed if the transfer did not complete
+        if (writer != null && !writer.isCommitted()) {
+            writer.getStaged().delete();
+        }
     }
 
-    // Handle TFTP Data message: write data to file
-    private void handleData(DataMessage dataMsg) {
-        try {
-            if (mode.equals("octet")) {
-                file.write(dataMsg.getData(), 0, dataMsg.getData().length);
-            } else if (mode.equals("netascii")) {
-                @SuppressWarnings("resource")
-                FromNetASCIIOutputStream is = new FromNetASCIIOutputStream(Channels.newOutputStream(file.getChannel()));
-                is.write(dataMsg.getData(), 0, dataMsg.getData().length);
+    private void illegalOperation() {
+        ErrorMessage msgError = new ErrorMessage(ErrorMessage.ILLEGAL_TFTP_OPERATION);
+        socket.send(msgError);
+
+        Logger.getGlobal().warning("Illegal TFTP Operation");
+        close();
+    }
+
+    // Handle TFTP Data message: queue data to be written to file
+    private void handleData(DataView data) {
+        int length = data.getDataLength();
+
+        // Duplicate or out of order block: acknowledge the last block
+        // received in order, so the client resends from the next one
+        if (data.getBlockNumber() != nextBlock) {
+            server.getMetrics().getTraffic().duplicate();
+            if (!ackHeld && !finishing) {
+                socket.sendAck(nextBlock - 1);
+                unacknowledged = 0;
             }
-        } catch (IOException e) {
-            ErrorMessage msgError = new ErrorMessage(ErrorMessage.ACCESS_VIOLATION);
-            socket.send(msgError);
+            return;
+        }
 
-            Logger.getGlobal().warning("Cannot write on file");
-            socket.close();
+        if (writer.getFailure() != null) {
+            abortUpload();
             return;
         }
 
-        // Acknowledge the TFTP Data message
-        AcknowledgeMessage msgAck = new AcknowledgeMessage(dataMsg.getBlockNumber());
-        socket.send(msgAck);
+        ByteBuffer payload = data.getData();
+        if (netascii) {
+            // Decoded text is at most one byte longer (a CR held back
+            // from the previous block)
+            if (text == null || text.capacity() < length + 1) {
+                text = ByteBuffer.allocate(Math.max(bSize, length) + 1);
+            }
+            if (decoder == null) {
+                decoder = new NetAsciiDecoder();
+            }
 
-        // If data length lower than block size, transfer is complete
-        if (dataMsg.getData().length < bSize) {
-            Logger.getGlobal().info("Transfer complete");
-            try {
-                if (fileSize != -1 && file.length() != fileSize) {
-                    Logger.getGlobal()
-                            .warning("File size is different from the transfer size reported by the TFTP Server.");
+            text.clear();
+            decoder.decode(payload, text, length < bSize);
+            text.flip();
+            payload = text;
+        }
+
+        if (!writer.offer(payload)) {
+            ackHeld = true;
+        }
+        timeFirstBlock();
+        position += length;
+        nextBlock = (nextBlock + 1) & 0xFFFF;
+
+        // If data length lower than block size, transfer is complete once
+        // the file is written
+        if (length < bSize) {
+            finishing = true;
+            writer.finish(new Runnable() {
+                public void run() {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            completeUpload();
+                        }
+                    });
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            });
+            return;
+        }
+
+        // Acknowledge the TFTP Data message at the end of each window
+        if (++unacknowledged >= socket.getWindowSize() && !ackHeld) {
+            socket.sendAck(data.getBlockNumber());
+            unacknowledged = 0;
+        }
+    }
 
-            socket.close();
+    // The writer caught up: acknowledge the blocks received meanwhile
+    private void resumeAcknowledges() {
+        if (!ackHeld || !socket.isOpen()) {
             return;
         }
+
+        ackHeld = false;
+        if (!finishing) {
+            socket.sendAck(nextBlock - 1);
+            unacknowledged = 0;
+        }
     }
 
-    // Handle TFTP Acknowledge message: send data to server
-    private void handleAcknowledge(AcknowledgeMessage ackMsg) {
-        byte[] b = new byte[bSize];
+    // The file is written: acknowledge the last block
+    private void completeUpload() {
+        if (!socket.isOpen()) {
+            return;
+        }
 
-        try {
-            int n = -1;
-
-            if (mode.equals("octet")) {
-                n = file.read(b);
-            } else if (mode.equals("netascii")) {
-                @SuppressWarnings("resource")
-                ToNetASCIIInputStream is = new ToNetASCIIInputStream(Channels.newInputStream(file.getChannel()));
-                n = is.read(b);
+        if (writer.getFailure() != null) {
+            abortUpload();
+            return;
+        }
+
+        socket.sendAck(nextBlock - 1);
+        server.getMetrics().completed(startedAt);
+        Logger.getGlobal().info("Transfer complete");
+        if (length != -1 && position != length) {
+            Logger.getGlobal().warning("File size is different from the transfer size reported by the TFTP Server.");
+        }
+
+        close();
+    }
+
+    private void abortUpload() {
+        ErrorMessage msgError = new ErrorMessage(ErrorMessage.ACCESS_VIOLATION);
+        socket.send(msgError);
+
+        Logger.getGlobal().warning("Cannot write on file: " + writer.getFailure().getMessage());
+        close();
+    }
+
+    // Handle TFTP Acknowledge message: fill the window with new blocks.
+    // The socket already slid its window over the acknowledged blocks.
+    private void handleAcknowledge() {
+        // Transfer is only complete when the last block is acknowledged
+        if (sentLast) {
+            if (socket.getInFlight() == 0) {
+                server.getMetrics().completed(startedAt);
+                Logger.getGlobal().info("Transfer complete");
+                close();
+            }
+            return;
+        }
+
+        if (pacer == null) {
+            openPacer();
+        }
+
+        while (!sentLast && !socket.isWindowFull()) {
+            if (!pacer.mayPass() || !sendBlock()) {
+                return;
+            }
+        }
+    }
+
+    private void openPacer() {
+        String fileName = new File(key.getFileName()).getName();
+        RateLimiter.Limits limits = server.getRateLimiter().open(socket.getRemote().getAddress(), fileName);
+        pacer = new Pacer(limits, executor, new Runnable() {
+            public void run() {
+                if (socket.isOpen()) {
+                    handleAcknowledge();
+                }
             }
+        });
+    }
+
+    // Time to first block sent (RRQ) or received (WRQ)
+    private void timeFirstBlock() {
+        if (!firstBlock) {
+            firstBlock = true;
+            server.getMetrics().firstBlock(startedAt);
+        }
+    }
 
-            // If data to send is lower than block size, transfer is complete
-            // Note: transfer is only complete when acknowledge to the last
-            // TFTP Data message is received
-            if (n < bSize) {
-                if (!sentLast) {
+    // Read the next block and send it, false if the session was aborted
+    private boolean sendBlock() {
+        try {
+            if (!netascii) {
+                // If file.length % bSize == 0, the last data packet has no data
+                int n = (int) Math.min(bSize, length - position);
+                if (n < bSize) {
                     sentLast = true;
+                }
+
+                socket.sendData(nextBlock, mapBlock(n));
+                position += n;
+                pacer.charge(n + TFTPSocket.DATA_HEADER);
+            } else {
+                if (text == null || text.capacity() != bSize) {
+                    text = ByteBuffer.allocate(bSize);
+                    encoder = new NetAsciiEncoder();
+                }
 
-                    // If file.length % bSize == 0, send last data packet
-                    // with no data
-                    if (n == -1) {
-                        n = 0;
+                // Fill the block, the last one is short
+                text.clear();
+                while (text.hasRemaining()) {
+                    int n = (int) Math.min(text.remaining(), length - position);
+                    ByteBuffer src = mapBlock(n);
+                    boolean end = position + n == length;
+                    encoder.encode(src, text, end);
+                    position += n - src.remaining();
+
+                    if (end && !src.hasRemaining() && !encoder.hasPending()) {
+                        break;
                     }
-                } else {
-                    Logger.getGlobal().info("Transfer complete");
-                    socket.close();
-                    return;
                 }
+
+                if (text.position() < bSize) {
+                    sentLast = true;
+                }
+
+                text.flip();
+                int n = text.remaining();
+                socket.sendData(nextBlock, text);
+                pacer.charge(n + TFTPSocket.DATA_HEADER);
             }
 
-            DataMessage msgData = new DataMessage(ackMsg.getBlockNumber() + 1, Arrays.copyOfRange(b, 0, n));
-            socket.send(msgData);
+            timeFirstBlock();
+            nextBlock = (nextBlock + 1) & 0xFFFF;
+            return true;
         } catch (IOException e) {
             ErrorMessage errorMsg = new ErrorMessage(ErrorMessage.ACCESS_VIOLATION);
             socket.send(errorMsg);
 
             Logger.getGlobal().warning("Cannot read file");
-            socket.close();
-            return;
+            close();
+            return false;
         }
     }
 
+    // The next n bytes of the file, moving to the next region when the block
+    // crosses the end of the current one. A cached file is a single region.
+    private ByteBuffer mapBlock(int n) throws IOException {
+        long offset = region * FileHandles.MAP_REGION;
+        if (content == null || position + n > offset + content.capacity()) {
+            region = handle.regionOf(position);
+            offset = region * FileHandles.MAP_REGION;
+            content = handle.region(region);
+        }
+
+        int start = (int) (position - offset);
+        content.limit(start + n);
+        content.position(start);
+        return content;
+    }
+
     // Handle TFTP Error message
-    private void handleError(ErrorMessage msgError) {
+    private void handleError(ErrorView msgError) {
         Logger.getGlobal().info("Error (" + msgError.getErrorCode() + "): " + msgError.getErrorMsg());
-        socket.close();
+        close();
         return;
     }
 
-    // Start session that will handle the TFTP client request
-    public void run() {
+    // Accept, adjust or refuse the requested options before the session is
+    // started. False if the session was closed, the client told why.
+    boolean negotiate() {
+        if (!initialized) {
+            close();
+            return false;
+        }
+
         // Parse TFTP Options
-        for (Entry<String, String> entry : options.entrySet()) {
+        Iterator<Entry<String, String>> it = options.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry<String, String> entry = it.next();
             switch (entry.getKey()) {
                 case "blksize": {
-                    int tmp = Integer.parseInt(entry.getValue());
-                    if (bSizeMax == -1 || bSizeMax >= tmp)
-                        bSize = tmp;
-                    else {
+                    int tmp = parseOption(entry.getValue());
+                    if (tmp < TFTPSocket.MIN_BLOCK_SIZE) {
+                        // Invalid request, keep the default block size
+                        it.remove();
+                        break;
+                    }
+
+                    bSize = Math.min(tmp, TFTPSocket.MAX_BLOCK_SIZE);
+                    int bSizeMax = server.getBlockSizeMax();
+                    if (bSizeMax != -1 && bSizeMax < bSize) {
                         bSize = bSizeMax;
-                        entry.setValue(Integer.toString(bSize));
+                    }
+                    entry.setValue(Integer.toString(bSize));
+
+                    try {
+                        socket.setBlockSize(bSize);
+                    } catch (IOException e) {
+                        e.printStackTrace();
                     }
                     break;
                 }
@@ -297,23 +580,58 @@ public class ServerSession implements Runnable {
                 case "tsize": {
                     switch (opcode) {
                         case TFTPMessage.RRQ: {
-                            try {
-                                entry.setValue(Long.toString(file.length()));
-                            } catch (IOException e) {
-                                e.printStackTrace();
+                            // Netascii files are announced with their converted size
+                            long size = length;
+                            if (netascii) {
+                                try {
+                                    size = getNetAsciiIndex().getLength();
+                                } catch (IOException e) {
+                                    Logger.getGlobal().warning("Cannot index file: " + e.getMessage());
+                                    it.remove();
+                                    break;
+                                }
                             }
+
+                            entry.setValue(Long.toString(size));
                             break;
                         }
 
                         case TFTPMessage.WRQ: {
-                            fileSize = Integer.parseInt(entry.getValue());
-                            if (tSizeMax != -1 && fileSize > tSizeMax) {
+                            try {
+                                length = Long.parseLong(entry.getValue());
+                            } catch (NumberFormatException e) {
+                                length = -1;
+                            }
+                            if (length < 0) {
+                                Logger.getGlobal().warning("Received transfer size option is not a valid size");
+                                ErrorMessage errorMsg = new ErrorMessage(ErrorMessage.ILLEGAL_TFTP_OPERATION);
+                                socket.send(errorMsg);
+
+                                close();
+                                return false;
+                            }
+
+                            // The file has to fit in the directory whatever the
+                            // maximum size allowed
+                            long tSizeMax = server.getTransferSizeMax();
+                            File directory = writer.getStaged().getParentFile();
+                            if ((tSizeMax != -1 && length > tSizeMax) || length > directory.getUsableSpace()) {
                                 Logger.getGlobal().warning("File to upload exceeds the maximum size allowed");
                                 ErrorMessage errorMsg = new ErrorMessage(ErrorMessage.DISK_FULL_OR_ALLOCATION_EXCEEDED);
                                 socket.send(errorMsg);
 
-                                socket.close();
-                                return;
+                                close();
+                                return false;
+                            }
+
+                            // Reserve the whole file at once instead of growing
+                            // it block after block (trimmed once complete)
+                            if (length <= PREALLOCATE_MAX) {
+                                try {
+                                    file.setLength(length);
+                                } catch (IOException e) {
+                                    Logger.getGlobal().warning("Cannot preallocate file: " + e.getMessage());
+                                }
                             }
                             break;
                         }
@@ -321,25 +639,89 @@ public class ServerSession implements Runnable {
                     break;
                 }
 
+                case "windowsize": {
+                    int tmp = parseOption(entry.getValue());
+                    if (tmp < 1 || tmp > 65535) {
+                        // Invalid request, keep lock-step transfer
+                        it.remove();
+                        break;
+                    }
+
+                    int window = tmp;
+                    int windowMax = server.getWindowSizeMax();
+                    if (windowMax != -1 && windowMax < window) {
+                        window = windowMax;
+                    }
+                    entry.setValue(Integer.toString(window));
+
+                    try {
+                        socket.setWindowSize(window);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    break;
+                }
+
                 case "interval": {
-                    int interval = Integer.parseInt(entry.getValue());
+                    int interval = parseOption(entry.getValue());
                     if (interval > 0 && interval < 256) { // Always accept interval request by client if in valid range
+                        this.socket.setAdaptiveTimeout(false);
                         this.socket.setTimeout(interval * 1000);
                     } else {
                         Logger.getGlobal().warning("Received timeout interval option is out of accepted range");
                         ErrorMessage errorMsg = new ErrorMessage(ErrorMessage.ILLEGAL_TFTP_OPERATION);
                         socket.send(errorMsg);
 
-                        socket.close();
-                        return;
+                        close();
+                        return false;
                     }
 
                     break;
                 }
 
+                case "multicast": {
+                    // Multicast (RFC 2090) is only served for RRQs
+                    if (opcode != TFTPMessage.RRQ || server.getMulticastGroup() == null) {
+                        it.remove();
+                    }
+                    break;
+                }
+
                 default:
                     // Option not supported
-                    options.remove(entry.getKey());
+                    it.remove();
+            }
+        }
+
+        return true;
+    }
+
+    // Value of a numeric option, -1 (out of range for every option) if it is
+    // not a number
+    private static int parseOption(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Answer the negotiated request, on the session's event loop or thread.
+    // Only the state of the transfer is kept from then on.
+    public void run() {
+        answer();
+        options = null;
+    }
+
+    private void answer() {
+        // Multicast transfers are lock-step and block numbers cannot wrap
+        if (options.containsKey("multicast")) {
+            options.remove("multicast");
+            if (length <= Integer.MAX_VALUE && transferLength() / bSize + 1 <= 65535) {
+                options.remove("windowsize");
+                options.remove("interval");
+                joinMulticast();
+                return;
             }
         }
 
@@ -352,8 +734,7 @@ public class ServerSession implements Runnable {
             // Response if no options to acknowledge
             if (opcode == TFTPMessage.RRQ) {
                 // Fake acknowledge message to start sending the file
-                AcknowledgeMessage msgAck = new AcknowledgeMessage(0);
-                handleAcknowledge(msgAck);
+                handleAcknowledge();
             } else if (opcode == TFTPMessage.WRQ) {
                 AcknowledgeMessage msgAck = new AcknowledgeMessage(0);
                 socket.send(msgAck);
@@ -361,7 +742,60 @@ public class ServerSession implements Runnable {
         }
     }
 
+    // Hand the client over to the multicast transfer of the file, which
+    // answers from its own port
+    private void joinMulticast() {
+        try {
+            ByteBuffer data = content;
+            if (data == null) {
+                data = handle.getChannel().map(MapMode.READ_ONLY, 0, length);
+            }
+
+            NetAsciiIndex text = netascii ? getNetAsciiIndex() : null;
+            server.joinMulticast(getPath().getCanonicalPath(), bSize, data, text, socket.getRemote(), options);
+        } catch (IOException e) {
+            ErrorMessage errorMsg = new ErrorMessage(ErrorMessage.ACCESS_VIOLATION);
+            socket.send(errorMsg);
+
+            Logger.getGlobal().warning("Cannot start multicast transfer: " + e.getMessage());
+        }
+
+        close();
+    }
+
+    // Index of the requested file, built on the first netascii request and
+    // kept by the server
+    private NetAsciiIndex getNetAsciiIndex() throws IOException {
+        return server.getNetAsciiIndexes().get(getPath(), content);
+    }
+
+    // Requested file (RRQ)
+    private File getPath() {
+        return new File(server.getLocalDir() + key.getFileName());
+    }
+
+    // Bytes sent for the requested file (Long.MAX_VALUE if unknown)
+    private long transferLength() {
+        if (!netascii) {
+            return length;
+        }
+
+        try {
+            return getNetAsciiIndex().getLength();
+        } catch (IOException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
     boolean isInitialized() {
         return initialized;
     }
+
+    long getWindowBytes() {
+        return windowBytes;
+    }
+
+    void setWindowBytes(long windowBytes) {
+        this.windowBytes = windowBytes;
+    }
 }
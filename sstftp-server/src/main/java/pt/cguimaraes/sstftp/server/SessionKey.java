@@ -0,0 +1,72 @@
+//=============================================================================
+// Brief     : TFTP Server Session Key
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.server;
+
+import java.net.InetSocketAddress;
+
+// A client retransmitting its request reuses the same address, port and
+// file name, so a request matching a running session is a duplicate
+final class SessionKey {
+
+    private final InetSocketAddress client;
+    private final String fileName;
+
+    SessionKey(InetSocketAddress client, String fileName) {
+        this.client = client;
+        this.fileName = fileName;
+    }
+
+    InetSocketAddress getClient() {
+        return client;
+    }
+
+    String getFileName() {
+        return fileName;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof SessionKey)) {
+            return false;
+        }
+
+        SessionKey other = (SessionKey) obj;
+        return client.equals(other.client) && fileName.equals(other.fileName);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * client.hashCode() + fileName.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return client + "/" + fileName;
+    }
+}
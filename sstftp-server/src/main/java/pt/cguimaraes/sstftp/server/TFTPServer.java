@@ -25,52 +25,494 @@
 
 package pt.cguimaraes.sstftp.server;
 
+import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Method;
 import java.net.InetAddress;
-import java.net.SocketException;
-import java.net.UnknownHostException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
 
+import pt.cguimaraes.sstftp.io.NetAsciiIndex;
+import pt.cguimaraes.sstftp.message.AckView;
+import pt.cguimaraes.sstftp.message.DataView;
+import pt.cguimaraes.sstftp.message.ErrorMessage;
+import pt.cguimaraes.sstftp.message.ErrorView;
+import pt.cguimaraes.sstftp.message.OptionAcknowledgeView;
+import pt.cguimaraes.sstftp.message.ReadRequestMessage;
+import pt.cguimaraes.sstftp.message.RequestView;
 import pt.cguimaraes.sstftp.message.TFTPMessage;
+import pt.cguimaraes.sstftp.message.WriteRequestMessage;
+import pt.cguimaraes.sstftp.socket.EventLoop;
+import pt.cguimaraes.sstftp.socket.EventLoopGroup;
+import pt.cguimaraes.sstftp.socket.SocketExecutor;
+import pt.cguimaraes.sstftp.socket.SocketThread;
+import pt.cguimaraes.sstftp.socket.TFTPMessageListener;
 import pt.cguimaraes.sstftp.socket.TFTPSocket;
 
 public class TFTPServer {
 
-    private TFTPSocket socket;
+    // Answer to requests refused under overload, read-only once built
+    private final static ErrorMessage BUSY = new ErrorMessage(ErrorMessage.NOT_DEFINED,
+            "Server busy, try again later");
+
+    // Sockets sharing the server port, each with its own share of the loops
+    private Listener[] listeners;
+    private EventLoopGroup loops;
 
     private String localDir;
     private int retries;
     private int interval;
+    private int minInterval;
+    private int maxInterval;
     private int blksize;
     private long tsize;
+    private int windowsize;
+
+    // Contents of popular files, shared by every session (null if disabled)
+    private volatile FileCache cache;
+
+    // Files being read, each one opened once for all its sessions
+    private FileHandles handles = new FileHandles();
+
+    // Converted sizes and checkpoints of the text files served in netascii
+    private NetAsciiIndexCache indexes = new NetAsciiIndexCache(1024);
+
+    // Multicast transfers (RFC 2090) by file and block size, each one on its
+    // own port of the group (null if disabled)
+    private volatile InetSocketAddress multicastGroup;
+    private Map<String, MulticastTransfer> transfers = new HashMap<String, MulticastTransfer>();
+    private BitSet multicastPorts = new BitSet();
+
+    // Threads opening files and negotiating options for the listeners
+    private Admission admission;
+
+    // Sessions run on threads of their own from this factory, or share the
+    // event loops when null
+    private volatile ThreadFactory sessionThreads;
+
+    // Threads writing uploads behind the sessions, and how often they sync
+    private ExecutorService writers;
+    private GroupCommit groupCommit;
+    private volatile long syncInterval = WriteBehind.SYNC_NEVER;
+
+    // Running sessions, used to drop retransmitted requests
+    private ConcurrentMap<SessionKey, ServerSession> sessions = new ConcurrentHashMap<SessionKey, ServerSession>();
 
-    public TFTPServer(int port, String localDir, int retries, int interval, int blksize, long tsize)
-            throws SocketException, NoSuchMethodException, SecurityException, UnknownHostException {
+    private ServerMetrics metrics = new ServerMetrics(this);
+    private RateLimiter rateLimiter = new RateLimiter();
+
+    public TFTPServer(int port, String localDir, int retries, int interval, int minInterval, int maxInterval,
+            int blksize, long tsize, int windowsize, int nLoops) throws IOException {
+        this(port, localDir, retries, interval, minInterval, maxInterval, blksize, tsize, windowsize, nLoops, 1, 0);
+    }
+
+    // Several listeners bind the port with SO_REUSEPORT, each on its own event
+    // loop and starting its sessions on its own loops only. Requests are
+    // admitted by nWorkers threads (0: one per event loop). The port is bound
+    // here, requests are only served once start() is called.
+    public TFTPServer(int port, String localDir, int retries, int interval, int minInterval, int maxInterval,
+            int blksize, long tsize, int windowsize, int nLoops, int nListeners, int nWorkers)
+            throws IOException {
         this.localDir = localDir;
         this.retries = retries;
         this.interval = interval;
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
         this.blksize = blksize;
         this.tsize = tsize;
+        this.windowsize = windowsize;
+
+        if (nLoops <= 0) {
+            nLoops = Runtime.getRuntime().availableProcessors();
+        }
+        if (nListeners <= 0) {
+            nListeners = nLoops;
+        }
+        nLoops = Math.max(nLoops, nListeners);
+
+        // Sessions and the listeners share a fixed pool of event loops
+        loops = new EventLoopGroup(nLoops, "sstftp-loop");
+        writers = Executors.newFixedThreadPool(nLoops, new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "sstftp-writer-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        groupCommit = new GroupCommit(writers);
+        admission = new Admission(this, nWorkers > 0 ? nWorkers : nLoops);
+
+        // The first listener picks the port when given 0, the others join it
+        Listener first = new Listener(port, nListeners > 1);
+        if (nListeners > 1 && !first.reusePort) {
+            Logger.getGlobal().warning("SO_REUSEPORT not supported, listening on a single socket");
+            nListeners = 1;
+        }
+
+        listeners = new Listener[nListeners];
+        listeners[0] = first;
+        for (int i = 1; i < nListeners; ++i) {
+            listeners[i] = new Listener(first.socket.getLocalPort(), true);
+        }
+    }
+
+    // Start serving requests, once the server is configured: the cache,
+    // multicast group, session threads and admission limits then apply from
+    // the first request on
+    public void start() throws IOException {
+        admission.start();
+
+        // Listener i runs on loop i and starts its sessions on loops i, i + n...
+        for (int i = 0; i < listeners.length; ++i) {
+            listeners[i].register(i, listeners.length);
+        }
+    }
+
+    // Start a session for a queued request, on an admission worker. Waits
+    // for the session and in-flight limits.
+    void admit(Admission.Pending pending) throws InterruptedException {
+        RequestView request = new RequestView();
+        if (!request.wrap(pending.packet)) {
+            return;
+        }
+        request.setSource(pending.source);
+
+        SessionKey key = pending.key;
+        if (sessions.containsKey(key)) {
+            Logger.getGlobal().fine("Duplicate request from " + key);
+            metrics.duplicateRequest();
+            return;
+        }
+        metrics.request(request.getOpcode());
+
+        TFTPMessage msg;
+        if (request.getOpcode() == TFTPMessage.RRQ) {
+            msg = new ReadRequestMessage(request);
+        } else {
+            msg = new WriteRequestMessage(request);
+        }
+
+        long windowBytes = getWindowBytes(request);
+        admission.acquire(windowBytes);
+
+        ServerSession session;
+        try {
+            ThreadFactory threads = sessionThreads;
+            SocketExecutor executor = threads != null ? new SocketThread(threads) : pending.loop;
+            session = new ServerSession(this, key, msg, executor);
+        } catch (IOException | RuntimeException e) {
+            admission.release(windowBytes);
+            Logger.getGlobal().warning("Cannot start session: " + e.getMessage());
+            return;
+        }
 
-        Method handler = TFTPServer.class.getMethod("handler", new Class[] { TFTPMessage.class });
+        // Released by removeSession() from now on
+        session.setWindowBytes(windowBytes);
+        if (sessions.putIfAbsent(key, session) != null) {
+            // A retransmission of the request got there first
+            session.close();
+            admission.release(windowBytes);
+            return;
+        }
+
+        // The transfer itself starts on the session's loop
+        try {
+            if (session.negotiate()) {
+                session.start();
+            }
+        } catch (IOException | RuntimeException e) {
+            Logger.getGlobal().warning("Cannot start session: " + e.getMessage());
+            session.close();
+        }
+    }
+
+    // Bytes a session may keep in flight: the window of blocks requested,
+    // within the server limits
+    private long getWindowBytes(RequestView request) {
+        int size = parseOption(request.getOption("blksize"), TFTPSocket.DEFAULT_BLOCK_SIZE);
+        if (size < TFTPSocket.MIN_BLOCK_SIZE) {
+            size = TFTPSocket.DEFAULT_BLOCK_SIZE;
+        }
+        size = Math.min(size, TFTPSocket.MAX_BLOCK_SIZE);
+        if (blksize != -1) {
+            size = Math.min(size, blksize);
+        }
+
+        int window = parseOption(request.getOption("windowsize"), 1);
+        if (window < 1 || window > 65535) {
+            window = 1;
+        }
+        if (windowsize != -1) {
+            window = Math.min(window, windowsize);
+        }
 
-        socket = new TFTPSocket(this, handler);
-        socket.bind(InetAddress.getByName("0.0.0.0"), port);
-        socket.setRetries(retries);
-        socket.setTimeout(interval);
+        return (long) (size + TFTPSocket.DATA_HEADER) * window;
+    }
 
-        socket.run();
+    private static int parseOption(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
     }
 
-    // Generic TFTP message handler
-    public void handler(TFTPMessage msg)
-            throws NoSuchMethodException, SecurityException, SocketException, Exception {
-        ServerSession session = null;
+    void removeSession(SessionKey key, ServerSession session) {
+        if (sessions.remove(key, session)) {
+            admission.release(session.getWindowBytes());
+        }
+    }
+
+    // Number of sessions currently running
+    public int getSessionCount() {
+        return sessions.size();
+    }
 
-        session = new ServerSession(localDir, retries, interval, blksize, tsize, msg);
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public ThreadFactory getSessionThreads() {
+        return sessionThreads;
+    }
+
+    // Run each new session on threads of its own (e.g. virtual threads) rather
+    // than on the event loops (null)
+    public void setSessionThreads(ThreadFactory sessionThreads) {
+        this.sessionThreads = sessionThreads;
+    }
+
+    Admission getAdmission() {
+        return admission;
+    }
+
+    // Most requests queued for admission before new ones are refused (0: no
+    // limit)
+    public void setMaxPendingRequests(int maxPending) {
+        admission.setMaxPending(maxPending);
+    }
+
+    // Most sessions running at once, further requests wait in the queue (0:
+    // no limit)
+    public void setMaxSessions(int maxSessions) {
+        admission.setMaxSessions(maxSessions);
+    }
+
+    // Most bytes the windows of the running sessions may hold (0: no limit)
+    public void setMaxInFlightBytes(long maxInFlight) {
+        admission.setMaxInFlight(maxInFlight);
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    String getLocalDir() {
+        return localDir;
+    }
+
+    int getRetries() {
+        return retries;
+    }
+
+    int getInterval() {
+        return interval;
+    }
+
+    int getMinInterval() {
+        return minInterval;
+    }
+
+    int getMaxInterval() {
+        return maxInterval;
+    }
+
+    int getBlockSizeMax() {
+        return blksize;
+    }
+
+    long getTransferSizeMax() {
+        return tsize;
+    }
+
+    int getWindowSizeMax() {
+        return windowsize;
+    }
+
+    // Add a client to the multicast transfer of a file, starting it if needed.
+    // The file is sent in netascii if its index is given.
+    void joinMulticast(String path, int blksize, ByteBuffer content, NetAsciiIndex index,
+            InetSocketAddress client, HashMap<String, String> options) throws IOException {
+        synchronized (transfers) {
+            String key = path + "/" + (index != null ? "netascii" : "octet") + "/" + blksize;
+            MulticastTransfer transfer = transfers.get(key);
+            if (transfer == null) {
+                int offset = multicastPorts.nextClearBit(0);
+                InetSocketAddress group = new InetSocketAddress(multicastGroup.getAddress(),
+                        multicastGroup.getPort() + offset);
+
+                RateLimiter.Limits limits = rateLimiter.open(null, new File(path).getName());
+                transfer = new MulticastTransfer(this, key, group, content, index, blksize, limits, loops.next());
+                transfers.put(key, transfer);
+                multicastPorts.set(offset);
+            }
+
+            transfer.join(client, options);
+        }
+    }
+
+    // Remove a multicast transfer without clients, false if one just joined
+    boolean endMulticast(MulticastTransfer transfer) {
+        synchronized (transfers) {
+            if (!transfer.isIdle()) {
+                return false;
+            }
+
+            transfers.remove(transfer.getKey());
+            multicastPorts.clear(transfer.getGroup().getPort() - multicastGroup.getPort());
+            return true;
+        }
+    }
+
+    public InetSocketAddress getMulticastGroup() {
+        return multicastGroup;
+    }
+
+    // Group address and first port of multicast transfers (null: disabled)
+    public void setMulticastGroup(InetSocketAddress group) {
+        this.multicastGroup = group;
+    }
+
+    Executor getWriters() {
+        return writers;
+    }
+
+    long getSyncInterval() {
+        return syncInterval;
+    }
+
+    GroupCommit getGroupCommit() {
+        return groupCommit;
+    }
+
+    // Sync uploads never (-1), once complete (0), in group commits (-2) or
+    // also every given bytes
+    public void setSyncInterval(long syncInterval) {
+        this.syncInterval = syncInterval;
+    }
+
+    NetAsciiIndexCache getNetAsciiIndexes() {
+        return indexes;
+    }
+
+    FileHandles getFileHandles() {
+        return handles;
+    }
+
+    public FileCache getFileCache() {
+        return cache;
+    }
+
+    public void setFileCache(FileCache cache) {
+        this.cache = cache;
+    }
+
+    public int getPort() {
+        return listeners[0].socket.getLocalPort();
+    }
+
+    // Number of sockets listening on the server port
+    public int getListenerCount() {
+        return listeners.length;
+    }
+
+    // Stop listening and abort every running session
+    public void close() throws InterruptedException {
+        admission.shutdown();
+        for (Listener listener : listeners) {
+            listener.socket.close();
+        }
+
+        // Sessions on threads of their own do not end with the loops
+        for (ServerSession session : sessions.values()) {
+            session.abort();
+        }
+        loops.shutdown();
+        loops.awaitTermination();
+    }
+
+    // A socket listening on the server port and the event loops it starts
+    // sessions on. Retransmitted requests come from the same source, so they
+    // reach the same listener.
+    private class Listener implements TFTPMessageListener {
+
+        private TFTPSocket socket;
+        private boolean reusePort;
+
+        // Loops of this listener's sessions, taken round-robin
+        private EventLoop[] shard;
+        private int next;
+
+        Listener(int port, boolean shared) throws IOException {
+            socket = new TFTPSocket(this);
+            socket.setMetrics(metrics.getTraffic());
+            if (shared) {
+                reusePort = socket.setReusePort(true);
+            }
+            socket.bind(InetAddress.getByName("0.0.0.0"), port);
+            socket.setRetries(retries);
+            socket.setTimeout(interval);
+        }
+
+        // Own every n-th loop starting from the given one, listening on the first
+        void register(int index, int n) throws IOException {
+            shard = new EventLoop[(loops.size() - index + n - 1) / n];
+            for (int i = 0; i < shard.length; ++i) {
+                shard[i] = loops.get(index + i * n);
+            }
+            socket.register(shard[0]);
+        }
+
+        public void onRequest(RequestView request) {
+            EventLoop loop = shard[next];
+            next = (next + 1) % shard.length;
+            if (!admission.submit(request, loop)) {
+                // Overloaded: tell the client to come back later rather than
+                // leaving it to retransmit into a full queue
+                socket.sendTo(BUSY, request.getSource());
+            }
+        }
+
+        // Transfer packets are never addressed to the listening port
+        public void onData(DataView data) {
+        }
+
+        public void onAck(AckView ack) {
+        }
+
+        public void onError(ErrorView error) {
+        }
+
+        public void onOack(OptionAcknowledgeView oack) {
+        }
 
-        if (session.isInitialized()) {
-            session.run();
+        public void onTimeout() {
         }
     }
 }
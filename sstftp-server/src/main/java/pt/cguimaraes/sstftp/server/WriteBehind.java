@@ -0,0 +1,269 @@
+//=============================================================================
+// Brief     : TFTP Server Write-Behind Upload Writer
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pt.cguimaraes.sstftp.socket.BufferPool;
+
+// Writes the blocks of an upload on a writer thread, so the session can
+// acknowledge a block as soon as it is queued instead of waiting on the
+// disk. Blocks queued meanwhile go out together in one gathering write.
+// Past HIGH_WATER queued bytes the session holds its acknowledges until
+// the writer is back under half of it. The upload is written to a staged
+// file next to the target, renamed over it once complete, so readers never
+// see a partial file.
+class WriteBehind implements Runnable {
+
+    // Queued bytes past which acknowledges are held
+    final static int HIGH_WATER = 4 << 20;
+
+    // Blocks written at once
+    private final static int MAX_GATHER = 256;
+
+    // fsync policies: never, once the file is complete, in group commits
+    // with other uploads, or also every given number of bytes
+    final static long SYNC_NEVER = -1;
+    final static long SYNC_FILE = 0;
+    final static long SYNC_GROUP = -2;
+
+    private FileChannel channel;
+    private File staged;
+    private File target;
+    private Executor executor;
+    private GroupCommit group;
+    private BufferPool pool = BufferPool.shared();
+    private long syncInterval;
+
+    // Called from the writer thread once the queue drains after going past
+    // HIGH_WATER, and once the file is complete
+    private Runnable drained;
+    private Runnable finished;
+
+    private ConcurrentLinkedQueue<ByteBuffer> queue = new ConcurrentLinkedQueue<ByteBuffer>();
+    private AtomicInteger queued = new AtomicInteger();
+    private AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean holding;
+    private volatile boolean finishing;
+    private volatile boolean aborted;
+    private volatile boolean committed;
+    private volatile IOException failure;
+
+    // Writer thread state
+    private ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];
+    private long written;
+    private long unsynced;
+
+    WriteBehind(TFTPServer server, FileChannel channel, File staged, File target, Runnable drained) {
+        this.channel = channel;
+        this.staged = staged;
+        this.target = target;
+        this.executor = server.getWriters();
+        this.group = server.getGroupCommit();
+        this.syncInterval = server.getSyncInterval();
+        this.drained = drained;
+    }
+
+    // Queue a copy of the remaining bytes of data, false if the session
+    // should hold its acknowledges until drained
+    boolean offer(ByteBuffer data) {
+        int n = data.remaining();
+        ByteBuffer copy = pool.acquire(Math.max(n, 1));
+        copy.put(data);
+        copy.flip();
+
+        queue.add(copy);
+        if (queued.addAndGet(n) > HIGH_WATER) {
+            holding = true;
+        }
+        schedule();
+        return !holding;
+    }
+
+    // Write what is left, trim the file to the bytes written, sync it
+    // (unless never) and rename it over the target, then call done from a
+    // writer thread
+    void finish(Runnable done) {
+        finished = done;
+        finishing = true;
+        schedule();
+    }
+
+    // Drop the queued blocks, the file is being closed
+    void abort() {
+        aborted = true;
+        schedule();
+    }
+
+    // First write error, the upload is lost
+    IOException getFailure() {
+        return failure;
+    }
+
+    long getWritten() {
+        return written;
+    }
+
+    // The target holds the upload
+    boolean isCommitted() {
+        return committed;
+    }
+
+    FileChannel getChannel() {
+        return channel;
+    }
+
+    File getStaged() {
+        return staged;
+    }
+
+    File getTarget() {
+        return target;
+    }
+
+    // End of a group commit
+    void committed(IOException e) {
+        if (e == null) {
+            committed = true;
+        } else {
+            failure = e;
+        }
+        finished.run();
+    }
+
+    public void run() {
+        do {
+            drain();
+            resume();
+            scheduled.set(false);
+        } while ((!queue.isEmpty() || holding) && !aborted && scheduled.compareAndSet(false, true));
+
+        if (aborted) {
+            release();
+        } else if (finishing && queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+            complete();
+        }
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this);
+        }
+    }
+
+    private void drain() {
+        while (!aborted) {
+            int n = 0;
+            long bytes = 0;
+            ByteBuffer buffer;
+            while (n < MAX_GATHER && (buffer = queue.poll()) != null) {
+                bytes += buffer.remaining();
+                batch[n++] = buffer;
+            }
+            if (n == 0) {
+                return;
+            }
+
+            try {
+                if (failure == null) {
+                    long left = bytes;
+                    while (left > 0) {
+                        left -= channel.write(batch, 0, n);
+                    }
+                    written += bytes;
+                    unsynced += bytes;
+
+                    if (syncInterval > 0 && unsynced >= syncInterval) {
+                        channel.force(false);
+                        unsynced = 0;
+                    }
+                }
+            } catch (IOException e) {
+                if (!aborted) {
+                    failure = e;
+                }
+            } finally {
+                for (int i = 0; i < n; ++i) {
+                    pool.release(batch[i]);
+                    batch[i] = null;
+                }
+            }
+
+            queued.addAndGet((int) -bytes);
+            resume();
+        }
+    }
+
+    // Resume the acknowledges held by the session
+    private void resume() {
+        if (holding && queued.get() < HIGH_WATER / 2) {
+            holding = false;
+            if (drained != null) {
+                drained.run();
+            }
+        }
+    }
+
+    private void complete() {
+        try {
+            if (failure == null) {
+                // Space reserved for tsize
+                channel.truncate(written);
+
+                if (syncInterval == SYNC_GROUP) {
+                    group.commit(this);
+                    return;
+                }
+
+                if (syncInterval != SYNC_NEVER) {
+                    channel.force(true);
+                }
+                GroupCommit.move(staged, target);
+                committed = true;
+                if (syncInterval != SYNC_NEVER) {
+                    GroupCommit.syncDirectory(target.getAbsoluteFile().getParentFile());
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        finished.run();
+    }
+
+    private void release() {
+        ByteBuffer buffer;
+        while ((buffer = queue.poll()) != null) {
+            pool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+//=============================================================================
+// Brief     : Test Transfers with Large Block Sizes (RFC 2348)
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import pt.cguimaraes.sstftp.message.AckView;
+import pt.cguimaraes.sstftp.message.DataView;
+import pt.cguimaraes.sstftp.message.ErrorView;
+import pt.cguimaraes.sstftp.message.OptionAcknowledgeView;
+import pt.cguimaraes.sstftp.message.ReadRequestMessage;
+import pt.cguimaraes.sstftp.message.RequestView;
+import pt.cguimaraes.sstftp.server.TFTPServer;
+import pt.cguimaraes.sstftp.socket.RttEstimator;
+import pt.cguimaraes.sstftp.socket.TFTPMessageListener;
+import pt.cguimaraes.sstftp.socket.TFTPSocket;
+
+class BlockSizeTest {
+
+    // Minimal GET client running on the calling thread
+    static class Download implements TFTPMessageListener {
+        private TFTPSocket socket;
+        private ByteArrayOutputStream data = new ByteArrayOutputStream();
+        private byte[] block = new byte[TFTPSocket.MAX_BLOCK_SIZE];
+        private int blksize = TFTPSocket.DEFAULT_BLOCK_SIZE;
+        private int nextBlock = 1;
+
+        Download(int port, String fileName, int blksize) throws IOException {
+            HashMap<String, String> options = new HashMap<String, String>();
+            options.put("blksize", Integer.toString(blksize));
+
+            socket = new TFTPSocket(InetAddress.getByName("127.0.0.1"), port, this);
+            socket.send(new ReadRequestMessage(fileName, "octet", options));
+            socket.run();
+        }
+
+        public void onOack(OptionAcknowledgeView oack) {
+            try {
+                blksize = Integer.parseInt(oack.getOption("blksize"));
+                socket.setBlockSize(blksize);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            socket.sendAck(0);
+        }
+
+        public void onData(DataView view) {
+            // Retransmitted block: acknowledge it again without writing it
+            if (view.getBlockNumber() != nextBlock) {
+                socket.sendAck(nextBlock - 1);
+                return;
+            }
+            nextBlock = (nextBlock + 1) & 0xFFFF;
+
+            view.copyData(block, 0);
+            data.write(block, 0, view.getDataLength());
+            socket.sendAck(view.getBlockNumber());
+
+            if (view.getDataLength() < blksize) {
+                socket.close();
+            }
+        }
+
+        public void onError(ErrorView error) {
+            System.out.println("Error (" + error.getErrorCode() + "): " + error.getErrorMsg());
+            socket.close();
+        }
+
+        public void onAck(AckView ack) {
+        }
+
+        public void onTimeout() {
+            System.out.println("Timed out");
+            socket.close();
+        }
+
+        public void onRequest(RequestView request) {
+        }
+
+        byte[] getData() {
+            return data.toByteArray();
+        }
+    }
+
+    public static void main(String args[]) throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "sstftp-blksize-test");
+        dir.mkdirs();
+
+        // Not a multiple of any tested block size
+        byte[] content = new byte[16 * 1024 * 1024 + 123];
+        new Random(2348).nextBytes(content);
+        File file = new File(dir, "image.bin");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+
+        TFTPServer server = new TFTPServer(0, dir.getPath() + "/", 3, 2000, RttEstimator.DEFAULT_MIN_TIMEOUT,
+                RttEstimator.DEFAULT_MAX_TIMEOUT, -1, -1, -1, 2);
+        server.start();
+
+        int[] sizes = { 512, 1428, 8192, 65464 };
+        double[] throughput = new double[sizes.length];
+        for (int i = 0; i < sizes.length; ++i) {
+            System.out.println("Testing GET with blksize " + sizes[i] + "...");
+
+            long start = System.nanoTime();
+            Download download = new Download(server.getPort(), file.getName(), sizes[i]);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            throughput[i] = content.length / seconds / (1024 * 1024);
+
+            if (Arrays.equals(download.getData(), content)) {
+                System.out.println("Content: check");
+            } else {
+                System.out.println("Content: not check");
+            }
+            System.out.println(String.format("Throughput: %.1f MiB/s", throughput[i]));
+
+            System.out.println("\n");
+        }
+
+        if (throughput[sizes.length - 1] > throughput[0]) {
+            System.out.println("Large blocks faster than 512 byte blocks: check");
+        } else {
+            System.out.println("Large blocks faster than 512 byte blocks: not check");
+        }
+
+        server.close();
+        file.delete();
+        dir.delete();
+    }
+}
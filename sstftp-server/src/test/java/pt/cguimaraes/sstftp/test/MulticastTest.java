@@ -0,0 +1,206 @@
+//=============================================================================
+// Brief     : Test Multicast Transfers over Loopback (RFC 2090)
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Random;
+
+import pt.cguimaraes.sstftp.message.AckView;
+import pt.cguimaraes.sstftp.message.DataView;
+import pt.cguimaraes.sstftp.message.ErrorView;
+import pt.cguimaraes.sstftp.message.OptionAcknowledgeView;
+import pt.cguimaraes.sstftp.message.ReadRequestMessage;
+import pt.cguimaraes.sstftp.message.RequestView;
+import pt.cguimaraes.sstftp.server.TFTPServer;
+import pt.cguimaraes.sstftp.socket.RttEstimator;
+import pt.cguimaraes.sstftp.socket.TFTPMessageListener;
+import pt.cguimaraes.sstftp.socket.TFTPSocket;
+
+class MulticastTest {
+
+    // Minimal multicast GET client: joins the group announced in the OACK
+    // and acknowledges only while it is the master client
+    static class Receiver extends Thread implements TFTPMessageListener {
+        private int port;
+        private String fileName;
+        private int blksize;
+
+        private TFTPSocket socket;
+        private TFTPSocket groupSocket;
+        private byte[] data;
+        private BitSet received = new BitSet();
+        private int nextBlock = 1;
+        private int lastBlock = -1;
+        private boolean master;
+        private boolean complete;
+
+        Receiver(int port, String fileName, int blksize, int length) {
+            this.port = port;
+            this.fileName = fileName;
+            this.blksize = blksize;
+            this.data = new byte[length];
+        }
+
+        public void run() {
+            try {
+                HashMap<String, String> options = new HashMap<String, String>();
+                options.put("blksize", Integer.toString(blksize));
+                options.put("multicast", "");
+
+                socket = new TFTPSocket(InetAddress.getByName("127.0.0.1"), port, this);
+                socket.send(new ReadRequestMessage(fileName, "octet", options));
+                socket.run();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        public synchronized void onOack(OptionAcknowledgeView oack) {
+            String[] fields = oack.getOption("multicast").split(",");
+            master = fields[2].equals("1");
+
+            try {
+                if (groupSocket == null) {
+                    InetSocketAddress group = new InetSocketAddress(fields[0], Integer.parseInt(fields[1]));
+                    groupSocket = new TFTPSocket(group, NetworkInterface.getByName("lo"), this);
+                    new Thread(groupSocket).start();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                socket.close();
+                return;
+            }
+
+            if (master) {
+                socket.sendAck(nextBlock - 1);
+            }
+        }
+
+        public synchronized void onData(DataView view) {
+            int block = view.getBlockNumber();
+            if (complete || block == 0) {
+                return;
+            }
+
+            socket.stopRetransmission();
+            if (!received.get(block)) {
+                view.copyData(data, (block - 1) * blksize);
+                received.set(block);
+                if (view.getDataLength() < blksize) {
+                    lastBlock = block;
+                }
+                while (received.get(nextBlock)) {
+                    ++nextBlock;
+                }
+            }
+
+            if (master || (lastBlock != -1 && nextBlock > lastBlock)) {
+                socket.sendAck(nextBlock - 1);
+            }
+
+            if (lastBlock != -1 && nextBlock > lastBlock) {
+                complete = true;
+                groupSocket.close();
+                socket.close();
+            }
+        }
+
+        public void onError(ErrorView error) {
+            System.out.println("Error (" + error.getErrorCode() + "): " + error.getErrorMsg());
+            socket.close();
+        }
+
+        public void onTimeout() {
+            System.out.println("Timed out");
+            if (groupSocket != null) {
+                groupSocket.close();
+            }
+            socket.close();
+        }
+
+        public void onAck(AckView ack) {
+        }
+
+        public void onRequest(RequestView request) {
+        }
+
+        byte[] getData() {
+            return data;
+        }
+
+        boolean isComplete() {
+            return complete;
+        }
+    }
+
+    public static void main(String args[]) throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "sstftp-multicast-test");
+        dir.mkdirs();
+
+        byte[] content = new byte[2 * 1024 * 1024 + 77];
+        new Random(2090).nextBytes(content);
+        File file = new File(dir, "kernel.bin");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+
+        TFTPServer server = new TFTPServer(0, dir.getPath() + "/", 5, 2000, RttEstimator.DEFAULT_MIN_TIMEOUT,
+                RttEstimator.DEFAULT_MAX_TIMEOUT, -1, -1, -1, 2);
+        server.setMulticastGroup(new InetSocketAddress("239.255.20.90", 20900 + new Random().nextInt(1000)));
+        server.start();
+
+        // Three clients at once, then a late joiner
+        Receiver[] receivers = new Receiver[4];
+        for (int i = 0; i < receivers.length; ++i) {
+            receivers[i] = new Receiver(server.getPort(), file.getName(), 1428, content.length);
+            receivers[i].start();
+            if (i == receivers.length - 2) {
+                Thread.sleep(100);
+            }
+        }
+
+        for (int i = 0; i < receivers.length; ++i) {
+            receivers[i].join(60000);
+            if (receivers[i].isComplete() && Arrays.equals(receivers[i].getData(), content)) {
+                System.out.println("Client " + i + " content: check");
+            } else {
+                System.out.println("Client " + i + " content: not check");
+            }
+        }
+
+        server.close();
+        file.delete();
+        dir.delete();
+    }
+}
@@ -0,0 +1,194 @@
+//=============================================================================
+// Brief     : Test the Memory Footprint of Idle Sessions
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+
+import pt.cguimaraes.sstftp.message.ReadRequestMessage;
+import pt.cguimaraes.sstftp.server.TFTPServer;
+import pt.cguimaraes.sstftp.socket.RttEstimator;
+
+class SessionFootprintTest {
+
+    // Sessions held open at once, each one takes a descriptor on both ends
+    private final static int SESSIONS = 4000;
+
+    // Sessions opened before the first measure, so classes and pools are
+    // already loaded
+    private final static int WARMUP = 200;
+
+    // Heap of an idle session as measured on JDK 21 (64-bit, compressed
+    // oops): about 565 bytes of session state, plus some 810 bytes for the
+    // channel of its port and its registration with the event loop
+    private final static long MEASURED_STATE = 565;
+    private final static long MEASURED_SESSION = 1375;
+
+    // Allowance over the measures for the noise of heap deltas and small
+    // layout changes; a session growing by more fails the checks
+    private final static long TOLERANCE = 64;
+
+    // Heap in use once the garbage is collected
+    static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 4; ++i) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    static long usedDirect() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+
+    // Send a read request from each client, which never answer the OACK.
+    // Sent in batches the listener can take without dropping any.
+    static void request(DatagramChannel[] clients, int from, int to, TFTPServer server, InetSocketAddress address)
+            throws IOException, InterruptedException {
+        HashMap<String, String> options = new HashMap<String, String>();
+        options.put("blksize", "1428");
+        options.put("windowsize", "4");
+        ByteBuffer packet = ByteBuffer.allocate(512);
+        new ReadRequestMessage("image.bin", "octet", options).toBuffer(packet);
+        packet.flip();
+
+        for (int i = from; i < to; ++i) {
+            clients[i].send(packet, address);
+            packet.rewind();
+
+            if ((i + 1 - from) % 100 == 0) {
+                awaitSessions(server, i + 1);
+            }
+        }
+        awaitSessions(server, to);
+
+        // Let the loops send the OACKs
+        Thread.sleep(500);
+    }
+
+    static void awaitSessions(TFTPServer server, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getSessionCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    public static void main(String args[]) throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "sstftp-footprint-test");
+        dir.mkdirs();
+
+        File file = new File(dir, "image.bin");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[1024 * 1024]);
+        out.close();
+
+        // Sessions must stay idle for the whole test: a minute before the
+        // first retransmission
+        TFTPServer server = new TFTPServer(0, dir.getPath() + "/", 3, 60000, RttEstimator.DEFAULT_MIN_TIMEOUT,
+                60000, -1, -1, -1, 1);
+        server.setMaxPendingRequests(0);
+        server.start();
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), server.getPort());
+
+        DatagramChannel[] clients = new DatagramChannel[SESSIONS];
+        for (int i = 0; i < SESSIONS; ++i) {
+            clients[i] = DatagramChannel.open();
+            clients[i].bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        }
+
+        // Heap of the channel alone, which every session needs for its port,
+        // registered with a selector as an event loop does
+        Selector selector = Selector.open();
+        long before = usedHeap();
+        DatagramChannel[] probes = new DatagramChannel[SESSIONS - WARMUP];
+        for (int i = 0; i < probes.length; ++i) {
+            probes[i] = DatagramChannel.open();
+            probes[i].bind(null);
+            probes[i].configureBlocking(false);
+            probes[i].register(selector, SelectionKey.OP_READ);
+        }
+        long channel = (usedHeap() - before) / probes.length;
+        for (DatagramChannel probe : probes) {
+            probe.close();
+        }
+        selector.close();
+
+        request(clients, 0, WARMUP, server, address);
+        long heap = usedHeap();
+        long direct = usedDirect();
+
+        request(clients, WARMUP, SESSIONS, server, address);
+        int opened = server.getSessionCount() - WARMUP;
+        long perSession = (usedHeap() - heap) / opened;
+        long perSessionDirect = (usedDirect() - direct) / opened;
+
+        System.out.println("Idle sessions: " + server.getSessionCount());
+        System.out.println("Heap per session: " + perSession + " bytes (channel " + channel + ", state "
+                + (perSession - channel) + ")");
+        System.out.println("Direct memory per session: " + perSessionDirect + " bytes");
+        System.out.println("Heap for 100000 sessions: " + (perSession * 100000 >> 20) + " MiB");
+
+        if (opened == SESSIONS - WARMUP) {
+            System.out.println("Sessions opened: check");
+        } else {
+            System.out.println("Sessions opened: not check");
+        }
+        long stateBudget = MEASURED_STATE + TOLERANCE;
+        if (perSession - channel <= stateBudget) {
+            System.out.println("Session state within " + stateBudget + " bytes: check");
+        } else {
+            System.out.println("Session state within " + stateBudget + " bytes: not check");
+        }
+        long sessionBudget = MEASURED_SESSION + TOLERANCE;
+        if (perSession <= sessionBudget) {
+            System.out.println("Session with its channel within " + sessionBudget + " bytes: check");
+        } else {
+            System.out.println("Session with its channel within " + sessionBudget + " bytes: not check");
+        }
+
+        for (DatagramChannel client : clients) {
+            client.close();
+        }
+        server.close();
+        file.delete();
+        dir.delete();
+    }
+}
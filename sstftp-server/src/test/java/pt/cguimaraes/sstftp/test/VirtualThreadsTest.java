@@ -0,0 +1,135 @@
+//=============================================================================
+// Brief     : Test Concurrent Sessions on Virtual Threads
+// Author(s) : Carlos Guimarães <carlos.em.guimaraes@gmail.com>
+// ----------------------------------------------------------------------------
+// ssTFTP - Open Trivial File Transfer Protocol
+//
+// Copyright (C) 2008-2023 Carlos Guimarães
+//
+// This file is part of ssTFTP.
+//
+// ssTFTP is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// ssTFTP is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with ssTFTP. If not, write to the Free Software Foundation,
+// Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+//=============================================================================
+
+package pt.cguimaraes.sstftp.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingFile;
+
+import pt.cguimaraes.sstftp.server.TFTPServer;
+import pt.cguimaraes.sstftp.socket.RttEstimator;
+
+class VirtualThreadsTest {
+
+    // Downloads running at once, each one on a virtual thread of its own as
+    // is its session on the server
+    private final static int SESSIONS = 64;
+
+    public static void main(String args[]) throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "sstftp-virtual-test");
+        dir.mkdirs();
+
+        byte[] content = new byte[1024 * 1024 + 321];
+        new Random(7440).nextBytes(content);
+        File file = new File(dir, "image.bin");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+
+        TFTPServer server = new TFTPServer(0, dir.getPath() + "/", 5, 2000, RttEstimator.DEFAULT_MIN_TIMEOUT,
+                RttEstimator.DEFAULT_MAX_TIMEOUT, -1, -1, -1, 2);
+        server.setSessionThreads(Thread.ofVirtual().name("sstftp-session-", 0).factory());
+        server.setMaxPendingRequests(0);
+        server.start();
+        final int port = server.getPort();
+        final String fileName = file.getName();
+
+        // A virtual thread parking while it holds a monitor stays pinned to
+        // its carrier: every such park is recorded
+        Recording recording = new Recording();
+        recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO).withStackTrace();
+        recording.start();
+
+        final byte[][] received = new byte[SESSIONS][];
+        final AtomicInteger failed = new AtomicInteger();
+        Thread[] clients = new Thread[SESSIONS];
+        for (int i = 0; i < SESSIONS; ++i) {
+            final int client = i;
+            clients[i] = Thread.ofVirtual().start(new Runnable() {
+                public void run() {
+                    try {
+                        received[client] = new BlockSizeTest.Download(port, fileName, 1428).getData();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        failed.incrementAndGet();
+                    }
+                }
+            });
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+
+        recording.stop();
+        Path dump = Files.createTempFile("sstftp-virtual-test", ".jfr");
+        recording.dump(dump);
+        recording.close();
+        List<RecordedEvent> pinned = RecordingFile.readAllEvents(dump);
+        Files.delete(dump);
+
+        int complete = 0;
+        for (byte[] data : received) {
+            if (data != null && Arrays.equals(data, content)) {
+                ++complete;
+            }
+        }
+        System.out.println("Complete downloads: " + complete + " of " + SESSIONS);
+        System.out.println("Virtual threads pinned: " + pinned.size());
+        for (RecordedEvent event : pinned.subList(0, Math.min(pinned.size(), 3))) {
+            for (RecordedFrame frame : event.getStackTrace().getFrames()) {
+                System.out.println("    at " + frame.getMethod().getType().getName() + "."
+                        + frame.getMethod().getName() + ":" + frame.getLineNumber());
+            }
+            System.out.println();
+        }
+
+        if (complete == SESSIONS && failed.get() == 0) {
+            System.out.println("Concurrent sessions on virtual threads: check");
+        } else {
+            System.out.println("Concurrent sessions on virtual threads: not check");
+        }
+        if (pinned.isEmpty()) {
+            System.out.println("No virtual thread pinned: check");
+        } else {
+            System.out.println("No virtual thread pinned: not check");
+        }
+
+        server.close();
+        file.delete();
+        dir.delete();
+    }
+}